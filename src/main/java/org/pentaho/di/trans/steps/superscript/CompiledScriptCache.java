@@ -0,0 +1,205 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+
+import org.pentaho.di.core.Const;
+
+/**
+ * A JVM-wide cache of compiled scripts, shared by all step copies and transformation runs. Entries are keyed by the
+ * language, the engine factory and the script content, and the least recently used entry is evicted when the cache is
+ * full. The size is set with the SUPERSCRIPT_COMPILED_CACHE_SIZE variable (in kettle.properties), 0 disables caching.
+ * <p>
+ * A compiled script stays bound to the engine that compiled it, it is evaluated against the script context passed in
+ * by the caller. So only engines that declare themselves thread-safe (a non-null THREADING parameter) share their
+ * compiled scripts, and only scripts that don't need to leave state (like function definitions) in the calling engine
+ * should be taken from here. Engines that keep state of their own (see
+ * {@link ScriptEngineRegistry#keepsEngineState(ScriptEngineFactory)}) never share, a Groovy compiled script for
+ * example runs its helper methods and closures in the engine that compiled it, whichever engine the caller holds.
+ * Keeping them out of the cache also keeps discarded engines from being held on to by cache entries.
+ *
+ * @author Matt Burgess
+ */
+public class CompiledScriptCache {
+
+  public static final String CACHE_SIZE_VARIABLE = "SUPERSCRIPT_COMPILED_CACHE_SIZE";
+
+  public static final int DEFAULT_CACHE_SIZE = 256;
+
+  private static final int maxSize =
+    Math.max( 0, Const.toInt( System.getProperty( CACHE_SIZE_VARIABLE ), DEFAULT_CACHE_SIZE ) );
+
+  private static final Map<Key, CompiledScript> cache = new LinkedHashMap<Key, CompiledScript>( 16, 0.75f, true ) {
+    protected boolean removeEldestEntry( Map.Entry<Key, CompiledScript> eldest ) {
+      if ( size() > maxSize ) {
+        evictions++;
+        return true;
+      }
+      return false;
+    }
+  };
+
+  private static long hits;
+  private static long misses;
+  private static long evictions;
+
+  private CompiledScriptCache() {
+  }
+
+  /**
+   * Returns the compiled script for the given engine and script, compiling it with that engine on a cache miss.
+   *
+   * @param engine the engine, must implement {@link Compilable}
+   * @param script the script source
+   * @return the compiled script
+   * @throws ScriptException if the script doesn't compile
+   */
+  public static CompiledScript compile( ScriptEngine engine, String script ) throws ScriptException {
+    return compile( engine, (Compilable) engine, script );
+  }
+
+  /**
+   * Returns the compiled script for the given engine and script, compiling it with the given compiler on a cache miss.
+   * Scripts of engines that can't share their compiled scripts are compiled on every call and not cached.
+   *
+   * @param engine   the engine, its factory is part of the cache key
+   * @param compiler compiles scripts for the engine, like the {@link GroovyBytecodeCache}
+   * @param script   the script source
+   * @return the compiled script
+   * @throws ScriptException if the script doesn't compile
+   */
+  public static CompiledScript compile( ScriptEngine engine, Compilable compiler, String script )
+    throws ScriptException {
+    ScriptEngineFactory factory = engine.getFactory();
+    if ( maxSize == 0 || factory == null || factory.getParameter( "THREADING" ) == null
+      || ScriptEngineRegistry.keepsEngineState( factory ) ) {
+      return compiler.compile( script );
+    }
+    Key key = new Key( factory, script );
+    synchronized ( cache ) {
+      CompiledScript compiledScript = cache.get( key );
+      if ( compiledScript != null ) {
+        hits++;
+        return compiledScript;
+      }
+      misses++;
+    }
+
+    // Compile outside of the lock, a concurrent miss on the same script just compiles it twice
+    CompiledScript compiledScript = compiler.compile( script );
+    synchronized ( cache ) {
+      cache.put( key, compiledScript );
+    }
+    return compiledScript;
+  }
+
+  public static void clear() {
+    synchronized ( cache ) {
+      cache.clear();
+    }
+  }
+
+  public static int size() {
+    synchronized ( cache ) {
+      return cache.size();
+    }
+  }
+
+  public static int getMaxSize() {
+    return maxSize;
+  }
+
+  public static long getHits() {
+    synchronized ( cache ) {
+      return hits;
+    }
+  }
+
+  public static long getMisses() {
+    synchronized ( cache ) {
+      return misses;
+    }
+  }
+
+  public static long getEvictions() {
+    synchronized ( cache ) {
+      return evictions;
+    }
+  }
+
+  /**
+   * @return a one-line summary of the cache statistics, for logging
+   */
+  public static String getStatistics() {
+    synchronized ( cache ) {
+      return "size=" + cache.size() + "/" + maxSize + ", hits=" + hits + ", misses=" + misses + ", evictions="
+        + evictions;
+    }
+  }
+
+  private static class Key {
+    private final String languageName;
+    private final String factoryClassName;
+    private final String engineVersion;
+    private final String script;
+    private final int hash;
+
+    Key( ScriptEngineFactory factory, String script ) {
+      this.languageName = factory.getLanguageName();
+      this.factoryClassName = factory.getClass().getName();
+      this.engineVersion = factory.getEngineVersion();
+      this.script = script;
+      int h = script.hashCode();
+      h = 31 * h + factoryClassName.hashCode();
+      h = 31 * h + ( languageName == null ? 0 : languageName.hashCode() );
+      this.hash = h;
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals( Object o ) {
+      if ( this == o ) {
+        return true;
+      }
+      if ( !( o instanceof Key ) ) {
+        return false;
+      }
+      Key other = (Key) o;
+      return hash == other.hash && factoryClassName.equals( other.factoryClassName )
+        && equal( languageName, other.languageName ) && equal( engineVersion, other.engineVersion )
+        && script.equals( other.script );
+    }
+
+    private static boolean equal( String a, String b ) {
+      return a == null ? b == null : a.equals( b );
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.SimpleBindings;
+import javax.script.SimpleScriptContext;
+
+/**
+ * What a script engine implementation can do, probed once per engine factory. The evaluators use it to pick the way
+ * they evaluate the transform script up front, instead of finding out through exceptions on every row.
+ *
+ * @author Matt Burgess
+ */
+public class EngineProfile {
+
+  /**
+   * How the transform script is evaluated for each row
+   */
+  public enum Strategy {
+    INVOKE_FUNCTION, COMPILED_CONTEXT, COMPILED_BINDINGS, INTERPRETED_CONTEXT, INTERPRETED_BINDINGS
+  }
+
+  private static final String PROBE_VARIABLE = "superScriptProbe";
+
+  private static final ConcurrentMap<String, EngineProfile> profiles = new ConcurrentHashMap<String, EngineProfile>();
+
+  private final String engineName;
+  private final String engineVersion;
+  private final String threading;
+  private final boolean compilable;
+  private final boolean invocable;
+  private final boolean contextEval;
+  private final boolean foreignBindings;
+  private final String numberClass;
+
+  private EngineProfile( ScriptEngine engine ) {
+    ScriptEngineFactory factory = engine.getFactory();
+    engineName = factory == null ? engine.getClass().getName() : factory.getEngineName();
+    engineVersion = factory == null ? null : factory.getEngineVersion();
+    Object threadingParameter = factory == null ? null : factory.getParameter( "THREADING" );
+    threading = threadingParameter == null ? null : threadingParameter.toString();
+    compilable = engine instanceof Compilable;
+    invocable = engine instanceof Invocable;
+
+    // Probe with a context of our own, the engine might be shared
+    ScriptContext probeContext = new SimpleScriptContext();
+    probeContext.setBindings( engine.createBindings(), ScriptContext.ENGINE_SCOPE );
+    boolean supportsContext = true;
+    try {
+      if ( compilable ) {
+        ( (Compilable) engine ).compile( "" ).eval( probeContext );
+      } else {
+        engine.eval( "", probeContext );
+      }
+    } catch ( UnsupportedOperationException e ) {
+      supportsContext = false;
+    } catch ( Exception e ) {
+      // Inconclusive, the evaluator falls back if context eval turns out not to be supported
+    }
+    contextEval = supportsContext;
+
+    // Whether what a script assigns ends up in engine scope bindings that are not the engine's own. Nashorn for one
+    // only stores a global object of its own in foreign bindings, and keeps the script variables in there
+    boolean writesForeignBindings = true;
+    try {
+      Bindings probeBindings = new SimpleBindings();
+      ScriptContext bindingsContext = new SimpleScriptContext();
+      bindingsContext.setBindings( probeBindings, ScriptContext.ENGINE_SCOPE );
+      engine.eval( PROBE_VARIABLE + " = 1", bindingsContext );
+      writesForeignBindings = probeBindings.get( PROBE_VARIABLE ) != null;
+    } catch ( Exception e ) {
+      // Inconclusive, not every language has such an assignment
+    }
+    foreignBindings = writesForeignBindings;
+
+    // The class a numeric literal comes back as, this is what most number results will need to be converted from
+    String literalClass = null;
+    try {
+      Object result = engine.eval( "1", probeContext );
+      literalClass = result == null ? null : result.getClass().getName();
+    } catch ( Exception e ) {
+      // Not every language has such a literal, leave it unknown
+    }
+    numberClass = literalClass;
+  }
+
+  /**
+   * @return the profile of the given engine, probed the first time an engine of its factory is seen
+   */
+  public static EngineProfile get( ScriptEngine engine ) {
+    ScriptEngineFactory factory = engine.getFactory();
+    String key = ( factory == null ? engine.getClass() : factory.getClass() ).getName();
+    EngineProfile profile = profiles.get( key );
+    if ( profile == null ) {
+      profile = new EngineProfile( engine );
+      EngineProfile existing = profiles.putIfAbsent( key, profile );
+      if ( existing != null ) {
+        profile = existing;
+      }
+    }
+    return profile;
+  }
+
+  /**
+   * @param functionMode whether the script defines a function to invoke for each row
+   * @return the best way to evaluate the transform script with this engine
+   */
+  public Strategy getStrategy( boolean functionMode ) {
+    if ( functionMode && invocable ) {
+      return Strategy.INVOKE_FUNCTION;
+    }
+    if ( compilable ) {
+      return contextEval ? Strategy.COMPILED_CONTEXT : Strategy.COMPILED_BINDINGS;
+    }
+    return contextEval ? Strategy.INTERPRETED_CONTEXT : Strategy.INTERPRETED_BINDINGS;
+  }
+
+  public String getEngineName() {
+    return engineName;
+  }
+
+  public String getEngineVersion() {
+    return engineVersion;
+  }
+
+  /**
+   * @return the THREADING parameter of the engine factory, null if the engine is not thread-safe
+   */
+  public String getThreading() {
+    return threading;
+  }
+
+  public boolean isCompilable() {
+    return compilable;
+  }
+
+  public boolean isInvocable() {
+    return invocable;
+  }
+
+  public boolean supportsContextEval() {
+    return contextEval;
+  }
+
+  /**
+   * @return true if the engine evaluates against engine scope bindings that it didn't create itself (like
+   *         {@link RowBindings}), false if it must be given the bindings from its createBindings()
+   */
+  public boolean supportsForeignBindings() {
+    return foreignBindings;
+  }
+
+  /**
+   * @return the class name of a numeric literal result, null if unknown
+   */
+  public String getNumberClass() {
+    return numberClass;
+  }
+
+  public String toString() {
+    return engineName + " " + engineVersion + " [compilable=" + compilable + ", invocable=" + invocable
+      + ", contextEval=" + contextEval + ", foreignBindings=" + foreignBindings + ", threading=" + threading + ", number=" + numberClass + "]";
+  }
+}
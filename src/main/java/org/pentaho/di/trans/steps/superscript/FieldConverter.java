@@ -0,0 +1,67 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * The conversion plan for one output field. The converter is resolved on the first value and kept for as long as the
+ * script keeps returning values of the same class.
+ *
+ * @author Matt Burgess
+ */
+public class FieldConverter {
+
+  private final String fieldName;
+  private final int type;
+
+  private Class<?> lastClass;
+  private ValueConverter converter;
+
+  public FieldConverter( String fieldName, int type ) {
+    this.fieldName = fieldName;
+    this.type = type;
+  }
+
+  public Object convert( Object value ) throws KettleValueException {
+    if ( value == null ) {
+      return null;
+    }
+    Class<?> clazz = value.getClass();
+    if ( clazz != lastClass ) {
+      if ( type == ValueMetaInterface.TYPE_NONE ) {
+        throw new KettleValueException( "No data output data type was specified for new field [" + fieldName + "]" );
+      }
+      converter = ValueConverters.resolve( type, clazz );
+      lastClass = clazz;
+    }
+    return converter.convert( value );
+  }
+
+  public String getFieldName() {
+    return fieldName;
+  }
+
+  public int getType() {
+    return type;
+  }
+}
@@ -0,0 +1,444 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovySystem;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.jsr223.GroovyCompiledScript;
+import org.codehaus.groovy.jsr223.GroovyScriptEngineImpl;
+import org.codehaus.groovy.tools.GroovyClass;
+import org.pentaho.di.core.Const;
+
+/**
+ * Compiles Groovy scripts through a directory of class files that survives the JVM, so a script is only compiled the
+ * first time it's seen, not on every run (Kitchen and Pan start a new JVM for each run). The directory is set with the
+ * SUPERSCRIPT_GROOVY_CACHE_DIR variable (see {@link #CACHE_DIR_VARIABLE}), there is no disk cache if it's not set.
+ * <p>
+ * The class files of a script are kept in [cache dir]/[Groovy version]/[key]/ and loaded by a class loader of their
+ * own, on top of the engine's class loader. The key is the SHA-256 of the script, the Groovy version and the class path
+ * of the engine's class loader (with the size and date of every file on it), so classes compiled against other jars
+ * are never loaded. The compiled script is bound to the engine this cache was created for and evaluated by it, just
+ * like a script it compiled itself, so it must not be handed to other engines (see {@link CompiledScriptCache}).
+ * <p>
+ * The cache directory may be shared or writable by others, so its content isn't trusted: the manifest of an entry lists
+ * every class file with an HMAC-SHA256 of the entry key, the class name and the class bytes. The HMAC key is a random
+ * key in the Kettle directory of the user (see {@link #KEY_FILE}), readable by the user only. The class files are read
+ * and checked before anything is defined, and an entry that doesn't check out is compiled again and replaced.
+ * <p>
+ * This is the only class of the step that refers to the Groovy API, so it must only be used for Groovy engines (see
+ * {@link #isGroovyEngine(ScriptEngine)}).
+ *
+ * @author Matt Burgess
+ */
+public class GroovyBytecodeCache implements Compilable {
+
+  public static final String CACHE_DIR_VARIABLE = "SUPERSCRIPT_GROOVY_CACHE_DIR";
+
+  /**
+   * The file with the HMAC key of the cache entries, in the Kettle directory of the user
+   */
+  public static final String KEY_FILE = "superscript-groovy-cache.key";
+
+  private static final String ENGINE_CLASS_NAME = "org.codehaus.groovy.jsr223.GroovyScriptEngineImpl";
+  private static final String MAIN_CLASS_FILE = "main";
+  private static final String CLASS_FILE_EXTENSION = ".class";
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+  private static final int KEY_LENGTH = 32;
+
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final AtomicLong rejected = new AtomicLong();
+  private static final AtomicLong renameFailures = new AtomicLong();
+
+  private static byte[] key;
+
+  private final GroovyScriptEngineImpl engine;
+  private final File versionDirectory;
+  private final String environment;
+  private final byte[] macKey;
+
+  /**
+   * @param engine         a Groovy engine, see {@link #isGroovyEngine(ScriptEngine)}
+   * @param cacheDirectory the cache directory, created if it doesn't exist
+   * @throws IllegalArgumentException if the engine is not a Groovy engine of the Groovy classes this class sees
+   * @throws IllegalStateException    if the HMAC key can't be read or created
+   */
+  public GroovyBytecodeCache( ScriptEngine engine, File cacheDirectory ) {
+    if ( !isGroovyEngine( engine ) ) {
+      throw new IllegalArgumentException( "Not a Groovy engine: " + engine );
+    }
+    this.engine = (GroovyScriptEngineImpl) engine;
+    this.versionDirectory = new File( cacheDirectory, "groovy-" + GroovySystem.getVersion() );
+    this.environment = GroovySystem.getVersion() + "\n" + getClassPath( this.engine.getClassLoader() );
+    this.macKey = getKey( new File( Const.getKettleDirectory(), KEY_FILE ) );
+  }
+
+  /**
+   * @return true if the engine is the Groovy JSR-223 engine of the Groovy classes this class sees. The class name is
+   *         checked first, so Groovy is only needed on the class path if the engine is a Groovy engine.
+   */
+  public static boolean isGroovyEngine( ScriptEngine engine ) {
+    return engine != null && ENGINE_CLASS_NAME.equals( engine.getClass().getName() )
+      && engine instanceof GroovyScriptEngineImpl;
+  }
+
+  public CompiledScript compile( String script ) throws ScriptException {
+    String hash = hash( script + "\n" + environment );
+    File scriptDirectory = new File( versionDirectory, hash );
+    try {
+      Entry entry = readEntry( hash, scriptDirectory );
+      if ( entry != null ) {
+        hits.incrementAndGet();
+      } else {
+        misses.incrementAndGet();
+        entry = compileToDisk( script, hash, scriptDirectory );
+      }
+      ClassLoader loader = new CacheClassLoader( engine.getClassLoader(), entry.classes );
+      return new GroovyCompiledScript( engine, loader.loadClass( entry.mainClassName ) );
+    } catch ( IOException e ) {
+      throw scriptException( e );
+    } catch ( ClassNotFoundException e ) {
+      throw scriptException( e );
+    } catch ( CompilationFailedException e ) {
+      throw scriptException( e );
+    }
+  }
+
+  public CompiledScript compile( Reader script ) throws ScriptException {
+    StringWriter writer = new StringWriter();
+    char[] buffer = new char[8192];
+    try {
+      for ( int n = script.read( buffer ); n >= 0; n = script.read( buffer ) ) {
+        writer.write( buffer, 0, n );
+      }
+    } catch ( IOException e ) {
+      throw scriptException( e );
+    }
+    return compile( writer.toString() );
+  }
+
+  /**
+   * Compiles the script and writes its class files to the cache. Another JVM might be doing the same thing at the same
+   * time, so the files are written to a temporary directory which is then renamed. The classes that are returned are
+   * the ones just compiled, whatever ends up on disk.
+   *
+   * @return the compiled entry
+   */
+  private Entry compileToDisk( String script, String hash, File scriptDirectory ) throws IOException {
+    // The class is named after the hash, so the same script always gets the same class name
+    String mainClassName = "SuperScript_" + hash.substring( 0, 16 );
+    CompilationUnit unit = new CompilationUnit( CompilerConfiguration.DEFAULT, null, engine.getClassLoader() );
+    unit.addSource( mainClassName + ".groovy", script );
+    unit.compile( Phases.CLASS_GENERATION );
+
+    @SuppressWarnings( "unchecked" )
+    List<GroovyClass> classes = unit.getClasses();
+    boolean found = false;
+    for ( GroovyClass groovyClass : classes ) {
+      found |= groovyClass.getName().equals( mainClassName );
+    }
+    if ( !found && !classes.isEmpty() ) {
+      // A script that only declares classes has no script class, the engine runs the first class
+      mainClassName = classes.get( 0 ).getName();
+    }
+
+    Entry entry = new Entry( mainClassName );
+    StringBuilder manifest = new StringBuilder( mainClassName ).append( '\n' );
+    for ( GroovyClass groovyClass : classes ) {
+      entry.classes.put( groovyClass.getName(), groovyClass.getBytes() );
+      manifest.append( groovyClass.getName() ).append( ' ' )
+        .append( mac( hash, groovyClass.getName(), groovyClass.getBytes() ) ).append( '\n' );
+    }
+
+    File tempDirectory = new File( versionDirectory, hash + ".tmp" + System.nanoTime() );
+    if ( !tempDirectory.mkdirs() ) {
+      throw new IOException( "Unable to create directory " + tempDirectory );
+    }
+    writeEntry( tempDirectory, entry, manifest.toString() );
+
+    if ( !tempDirectory.renameTo( scriptDirectory ) ) {
+      // Another JVM (or thread) got there first, or the directory can't be renamed on this file system
+      renameFailures.incrementAndGet();
+      if ( readEntry( hash, scriptDirectory ) == null ) {
+        // There is no valid entry either, write ours over whatever is there
+        if ( !scriptDirectory.isDirectory() && !scriptDirectory.mkdirs() ) {
+          throw new IOException( "Unable to create directory " + scriptDirectory );
+        }
+        writeEntry( scriptDirectory, entry, manifest.toString() );
+      }
+      deleteDirectory( tempDirectory );
+    }
+    return entry;
+  }
+
+  private static void writeEntry( File directory, Entry entry, String manifest ) throws IOException {
+    // The manifest goes last, it marks the directory as complete
+    new File( directory, MAIN_CLASS_FILE ).delete();
+    for ( Map.Entry<String, byte[]> clazz : entry.classes.entrySet() ) {
+      writeFile( new File( directory, clazz.getKey() + CLASS_FILE_EXTENSION ), clazz.getValue() );
+    }
+    writeFile( new File( directory, MAIN_CLASS_FILE ), manifest.getBytes( "UTF-8" ) );
+  }
+
+  /**
+   * Reads a cache entry and checks the HMAC of every class file listed in its manifest.
+   *
+   * @return the entry, null if there is no complete entry or if it doesn't check out
+   */
+  private Entry readEntry( String hash, File scriptDirectory ) throws IOException {
+    File mainFile = new File( scriptDirectory, MAIN_CLASS_FILE );
+    if ( !mainFile.isFile() ) {
+      return null;
+    }
+    String[] lines = new String( readFile( mainFile ), "UTF-8" ).split( "\n" );
+    Entry entry = new Entry( lines[0].trim() );
+    for ( int i = 1; i < lines.length; i++ ) {
+      String line = lines[i].trim();
+      if ( line.length() == 0 ) {
+        continue;
+      }
+      int space = line.indexOf( ' ' );
+      String className = space < 0 ? line : line.substring( 0, space );
+      File classFile = new File( scriptDirectory, className + CLASS_FILE_EXTENSION );
+      // The class name must not point outside of the entry
+      if ( space < 0 || !scriptDirectory.equals( classFile.getParentFile() ) || !classFile.isFile() ) {
+        rejected.incrementAndGet();
+        return null;
+      }
+      byte[] bytes = readFile( classFile );
+      if ( !MessageDigest.isEqual( mac( hash, className, bytes ).getBytes( "UTF-8" ), line.substring( space + 1 )
+        .getBytes( "UTF-8" ) ) ) {
+        rejected.incrementAndGet();
+        return null;
+      }
+      entry.classes.put( className, bytes );
+    }
+    if ( entry.mainClassName.length() == 0 || !entry.classes.containsKey( entry.mainClassName ) ) {
+      rejected.incrementAndGet();
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * @return the hex HMAC of a class of the entry with the given key
+   */
+  private String mac( String hash, String className, byte[] bytes ) throws IOException {
+    try {
+      Mac mac = Mac.getInstance( MAC_ALGORITHM );
+      mac.init( new SecretKeySpec( macKey, MAC_ALGORITHM ) );
+      mac.update( ( hash + "\n" + className + "\n" ).getBytes( "UTF-8" ) );
+      return toHex( mac.doFinal( bytes ) );
+    } catch ( GeneralSecurityException e ) {
+      throw new IOException( e.getMessage(), e );
+    }
+  }
+
+  /**
+   * Reads the HMAC key of the cache entries, or creates it if there is none yet. A new key is written to a file of its
+   * own, readable and writable by the user only, and then renamed, so concurrent JVMs all end up with the same key.
+   */
+  private static synchronized byte[] getKey( File keyFile ) {
+    if ( key != null ) {
+      return key;
+    }
+    try {
+      if ( !keyFile.isFile() ) {
+        byte[] newKey = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes( newKey );
+        File directory = keyFile.getAbsoluteFile().getParentFile();
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+          throw new IOException( "Unable to create directory " + directory );
+        }
+        File tempFile = new File( directory, KEY_FILE + ".tmp" + System.nanoTime() );
+        writeFile( tempFile, new byte[0] );
+        // Others lose access before the key is written
+        tempFile.setReadable( false, false );
+        tempFile.setWritable( false, false );
+        tempFile.setReadable( true, true );
+        tempFile.setWritable( true, true );
+        writeFile( tempFile, newKey );
+        if ( !tempFile.renameTo( keyFile ) ) {
+          tempFile.delete();
+        }
+      }
+      byte[] bytes = readFile( keyFile );
+      if ( bytes.length < KEY_LENGTH ) {
+        throw new IOException( "Invalid key file " + keyFile );
+      }
+      key = bytes;
+      return key;
+    } catch ( IOException e ) {
+      throw new IllegalStateException( "Unable to read or create the Groovy cache key: " + e.getMessage(), e );
+    }
+  }
+
+  /**
+   * @return a one-line summary of the cache statistics, for logging
+   */
+  public static String getStatistics() {
+    return "hits=" + hits.get() + ", misses=" + misses.get() + ", rejected=" + rejected.get() + ", rename failures="
+      + renameFailures.get();
+  }
+
+  /**
+   * @return the URLs on the class path of the given class loader and its parents, each one with the size and date of
+   *         the file it points to
+   */
+  private static String getClassPath( ClassLoader classLoader ) {
+    StringBuilder classPath = new StringBuilder();
+    for ( ClassLoader loader = classLoader; loader != null; loader = loader.getParent() ) {
+      if ( loader instanceof URLClassLoader ) {
+        for ( URL url : ( (URLClassLoader) loader ).getURLs() ) {
+          classPath.append( url );
+          if ( "file".equals( url.getProtocol() ) ) {
+            File file = new File( url.getPath() );
+            classPath.append( '|' ).append( file.length() ).append( '|' ).append( file.lastModified() );
+          }
+          classPath.append( '\n' );
+        }
+      }
+    }
+    return classPath.toString();
+  }
+
+  private static String hash( String script ) throws ScriptException {
+    try {
+      return toHex( MessageDigest.getInstance( "SHA-256" ).digest( script.getBytes( "UTF-8" ) ) );
+    } catch ( NoSuchAlgorithmException e ) {
+      throw scriptException( e );
+    } catch ( IOException e ) {
+      throw scriptException( e );
+    }
+  }
+
+  private static String toHex( byte[] bytes ) {
+    StringBuilder hex = new StringBuilder( bytes.length * 2 );
+    for ( byte b : bytes ) {
+      hex.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+    }
+    return hex.toString();
+  }
+
+  private static ScriptException scriptException( Exception e ) {
+    ScriptException se = new ScriptException( e.getMessage() );
+    se.initCause( e );
+    return se;
+  }
+
+  private static byte[] readFile( File file ) throws IOException {
+    InputStream in = new FileInputStream( file );
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream( (int) file.length() );
+      byte[] buffer = new byte[8192];
+      for ( int n = in.read( buffer ); n >= 0; n = in.read( buffer ) ) {
+        bytes.write( buffer, 0, n );
+      }
+      return bytes.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void writeFile( File file, byte[] bytes ) throws IOException {
+    OutputStream out = new FileOutputStream( file );
+    try {
+      out.write( bytes );
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void deleteDirectory( File directory ) {
+    File[] files = directory.listFiles();
+    if ( files != null ) {
+      for ( File file : files ) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  /**
+   * The checked class files of one cached script, by class name.
+   */
+  private static class Entry {
+    private final String mainClassName;
+    private final Map<String, byte[]> classes = new HashMap<String, byte[]>();
+
+    Entry( String mainClassName ) {
+      this.mainClassName = mainClassName;
+    }
+  }
+
+  /**
+   * Defines the classes of one cached script from the bytes that were checked, so a file that changes after the check
+   * is never loaded. Anything else comes from the engine's class loader.
+   */
+  private static class CacheClassLoader extends ClassLoader {
+    private final Map<String, byte[]> classes;
+
+    CacheClassLoader( GroovyClassLoader parent, Map<String, byte[]> classes ) {
+      super( parent );
+      this.classes = classes;
+    }
+
+    protected Class<?> findClass( String name ) throws ClassNotFoundException {
+      byte[] bytes = classes.get( name );
+      if ( bytes == null ) {
+        throw new ClassNotFoundException( name );
+      }
+      return defineClass( name, bytes, 0, bytes.length );
+    }
+  }
+}
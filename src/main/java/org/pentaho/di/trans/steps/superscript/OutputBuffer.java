@@ -0,0 +1,164 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Lets a script write the values of the output fields straight into their slots, by index (in the order of the fields
+ * grid) or by name. It is bound to the script as "output" (see {@link #OUTPUT}):
+ * <ul>
+ * <li>output.set(0, value) or output.set("name", value) sets an output field for the current row</li>
+ * </ul>
+ * When the output row is built, a field set here is copied as it is, without looking up the variable of the same name
+ * in the bindings. A value that already has the Kettle class of the field's type (Long for Integer, Double for Number,
+ * ...) isn't converted at all. Fields that are not set are taken from the bindings, as before.
+ *
+ * @author Matt Burgess
+ */
+public class OutputBuffer {
+
+  /**
+   * The name the output buffer is bound to. "out" is not used, Groovy binds its print writer to it.
+   */
+  public static final String OUTPUT = "output";
+
+  private static final Object UNSET = new Object();
+
+  private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+  private final Class<?>[] nativeClasses;
+  private final Object[] values;
+  private boolean dirty;
+
+  /**
+   * @param fieldNames the names of the output fields, in the order of the fields grid
+   * @param types      the Kettle types of the output fields
+   */
+  public OutputBuffer( String[] fieldNames, int[] types ) {
+    values = new Object[fieldNames.length];
+    nativeClasses = new Class<?>[fieldNames.length];
+    for ( int i = 0; i < fieldNames.length; i++ ) {
+      if ( fieldNames[i] != null && !indexes.containsKey( fieldNames[i] ) ) {
+        indexes.put( fieldNames[i], i );
+      }
+      nativeClasses[i] = getNativeClass( types[i] );
+      values[i] = UNSET;
+    }
+  }
+
+  public void set( int index, Object value ) {
+    values[index] = value;
+    dirty = true;
+  }
+
+  public void set( String name, Object value ) throws KettleValueException {
+    set( index( name ), value );
+  }
+
+  /**
+   * @return the value set for the given output field, null if it wasn't set for the current row
+   */
+  public Object get( int index ) {
+    Object value = values[index];
+    return value == UNSET ? null : value;
+  }
+
+  public Object get( String name ) throws KettleValueException {
+    return get( index( name ) );
+  }
+
+  /**
+   * @return whether the given output field was set for the current row
+   */
+  public boolean isSet( int index ) {
+    return values[index] != UNSET;
+  }
+
+  /**
+   * @return the index of the given output field, -1 if there is no such field
+   */
+  public int indexOf( String name ) {
+    Integer index = indexes.get( name );
+    return index == null ? -1 : index;
+  }
+
+  public int size() {
+    return values.length;
+  }
+
+  /**
+   * @return true if the value can go into the output row of field i without conversion
+   */
+  boolean isNative( int index, Object value ) {
+    return value == null || ( nativeClasses[index] != null && nativeClasses[index].isInstance( value ) );
+  }
+
+  /**
+   * Forgets the values set for the previous row.
+   */
+  void reset() {
+    if ( dirty ) {
+      for ( int i = 0; i < values.length; i++ ) {
+        values[i] = UNSET;
+      }
+      dirty = false;
+    }
+  }
+
+  private int index( String name ) throws KettleValueException {
+    Integer index = indexes.get( name );
+    if ( index == null ) {
+      throw new KettleValueException( "Unknown output field [" + name + "]" );
+    }
+    return index;
+  }
+
+  /**
+   * @return the class Kettle keeps values of the given type in, null if values of the type always need converting.
+   *         Dates are mutable, they are still copied by the converter.
+   */
+  static Class<?> getNativeClass( int type ) {
+    switch ( type ) {
+      case ValueMetaInterface.TYPE_NUMBER:
+        return Double.class;
+      case ValueMetaInterface.TYPE_STRING:
+        return String.class;
+      case ValueMetaInterface.TYPE_INTEGER:
+        return Long.class;
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        return Boolean.class;
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+        return BigDecimal.class;
+      case ValueMetaInterface.TYPE_BINARY:
+        return byte[].class;
+      case ValueMetaInterface.TYPE_INET:
+        return InetAddress.class;
+      default:
+        return null;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import org.pentaho.di.core.row.RowDataUtil;
+
+/**
+ * Turns input rows into output rows. Rows allocated by Kettle have a few spare slots (see
+ * {@link RowDataUtil#OVER_ALLOCATE_SIZE}), so as long as the new fields fit the input row is widened in place. Otherwise
+ * the row is copied into an array with the same spare capacity, so the steps after this one can widen it in place in
+ * turn. The allocator counts both cases, a high copy count means the rows come in without room for the new fields.
+ * <p>
+ * An allocator is used by one thread only.
+ *
+ * @author Matt Burgess
+ */
+public class OutputRowAllocator {
+
+  private final int outputSize;
+
+  private long widened;
+  private long copied;
+
+  /**
+   * @param outputSize the number of fields in the output rows
+   */
+  public OutputRowAllocator( int outputSize ) {
+    this.outputSize = outputSize;
+  }
+
+  /**
+   * @param row the input row, can be null when the step has no input
+   * @return the row itself if it has room for the output fields, a larger copy of it otherwise
+   */
+  public Object[] widen( Object[] row ) {
+    if ( row != null && row.length >= outputSize ) {
+      widened++;
+      return row;
+    }
+    copied++;
+    Object[] outputRow = RowDataUtil.allocateRowData( outputSize );
+    if ( row != null ) {
+      System.arraycopy( row, 0, outputRow, 0, row.length );
+    }
+    return outputRow;
+  }
+
+  /**
+   * @return a new, empty output row with spare capacity
+   */
+  public Object[] allocate() {
+    copied++;
+    return RowDataUtil.allocateRowData( outputSize );
+  }
+
+  public int getOutputSize() {
+    return outputSize;
+  }
+
+  /**
+   * @return the number of rows widened in place
+   */
+  public long getWidenedCount() {
+    return widened;
+  }
+
+  /**
+   * @return the number of rows that had to be allocated
+   */
+  public long getCopiedCount() {
+    return copied;
+  }
+}
@@ -0,0 +1,324 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+
+/**
+ * Evaluates rows on several script evaluators (each with its own engine, bindings and compiled script) at the same
+ * time. Every evaluator is owned by one worker thread, the workers take rows from a shared queue, so an idle worker
+ * always picks up the next row no matter how long the other workers take on theirs.
+ * <p>
+ * In ordered mode the results are handed back in input order through a reorder buffer. In unordered mode they are
+ * handed back as soon as they are done, so one slow row doesn't hold back the rows evaluated after it. Either way the
+ * step writes them from its own thread.
+ *
+ * @author Matt Burgess
+ */
+public class ParallelScriptRunner {
+
+  /**
+   * The number of rows that can be queued or waiting in the reorder buffer, per worker
+   */
+  public static final int ROWS_IN_FLIGHT_PER_WORKER = 256;
+
+  private static final RowTask STOP = new RowTask( null, null, 0, null );
+
+  private final BlockingQueue<RowTask> queue = new LinkedBlockingQueue<RowTask>();
+  private final LinkedList<RowTask> reorderBuffer = new LinkedList<RowTask>();
+  private final BlockingQueue<RowTask> completed;
+  private final ScriptEvaluator[] evaluators;
+  private final Thread[] threads;
+  private final AtomicLongArray rowsPerWorker;
+  private final boolean ordered;
+  private final int maxInFlight;
+  private int inFlight;
+  private volatile boolean aborted;
+
+  /**
+   * A row handed to the workers, along with the outcome of its evaluation.
+   */
+  public static class RowTask {
+    final Object[] row;
+    final Object[] lastRow;
+    final int rowNumber;
+    final BlockingQueue<RowTask> completed;
+
+    Object[] outputRow;
+    List<Object[]> emittedRows = Collections.emptyList();
+    int[] routes;
+    int transStatus;
+    KettleValueException exception;
+    boolean cancelled;
+
+    private boolean done;
+
+    RowTask( Object[] row, Object[] lastRow, int rowNumber, BlockingQueue<RowTask> completed ) {
+      this.row = row;
+      this.lastRow = lastRow;
+      this.rowNumber = rowNumber;
+      this.completed = completed;
+    }
+
+    void run( ScriptEvaluator evaluator, ParallelScriptRunner runner ) {
+      try {
+        outputRow = evaluator.processRow( row, lastRow, rowNumber );
+        transStatus = evaluator.getTransStatus();
+        routes = evaluator.getRoutes();
+        if ( !evaluator.getEmittedRows().isEmpty() ) {
+          // The evaluator reuses its list for the next row
+          emittedRows = new ArrayList<Object[]>( evaluator.getEmittedRows() );
+        }
+      } catch ( Throwable t ) {
+        if ( runner.aborted ) {
+          // Most likely the interrupt of abort() landing in the engine, this is no error of the row
+          cancelled = true;
+        } else {
+          exception = t instanceof KettleValueException ? (KettleValueException) t
+            : new KettleValueException( t.getMessage(), t );
+        }
+      }
+      synchronized ( this ) {
+        done = true;
+        notifyAll();
+      }
+      if ( completed != null ) {
+        completed.add( this );
+      }
+    }
+
+    synchronized boolean isDone() {
+      return done;
+    }
+
+    synchronized void await() throws InterruptedException {
+      while ( !done ) {
+        wait();
+      }
+    }
+
+    public Object[] getRow() {
+      return row;
+    }
+
+    /**
+     * @return the output row, null if the script set a trans_Status or failed
+     */
+    public Object[] getOutputRow() {
+      return outputRow;
+    }
+
+    /**
+     * @return the rows the script emitted for this row, written instead of the output row
+     */
+    public List<Object[]> getEmittedRows() {
+      return emittedRows;
+    }
+
+    /**
+     * @return the indexes of the target streams the script routed this row to, null if the script didn't route it
+     */
+    public int[] getRoutes() {
+      return routes;
+    }
+
+    public int getTransStatus() {
+      return transStatus;
+    }
+
+    /**
+     * @return true if the evaluation of the row was cut short by {@link ParallelScriptRunner#abort()}, the row has no
+     *         outcome then
+     */
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    /**
+     * @return the exception thrown while evaluating the row, if any
+     */
+    public KettleValueException getException() {
+      return exception;
+    }
+  }
+
+  /**
+   * Starts one worker thread per evaluator.
+   *
+   * @param name       the name prefix of the worker threads
+   * @param evaluators the initialized evaluators, each one is used by a single worker
+   * @param ordered    whether the results are handed back in input order
+   */
+  public ParallelScriptRunner( String name, ScriptEvaluator[] evaluators, boolean ordered ) {
+    this.evaluators = evaluators;
+    this.ordered = ordered;
+    completed = ordered ? null : new LinkedBlockingQueue<RowTask>();
+    maxInFlight = evaluators.length * ROWS_IN_FLIGHT_PER_WORKER;
+    threads = new Thread[evaluators.length];
+    rowsPerWorker = new AtomicLongArray( evaluators.length );
+    for ( int i = 0; i < evaluators.length; i++ ) {
+      final ScriptEvaluator evaluator = evaluators[i];
+      final int worker = i;
+      threads[i] = new Thread( new Runnable() {
+        public void run() {
+          try {
+            RowTask task;
+            while ( ( task = queue.take() ) != STOP ) {
+              rowsPerWorker.incrementAndGet( worker );
+              task.run( evaluator, ParallelScriptRunner.this );
+            }
+          } catch ( InterruptedException e ) {
+            // Stopped
+          }
+        }
+      }, name + " - worker #" + ( i + 1 ) );
+      threads[i].setDaemon( true );
+      threads[i].start();
+    }
+  }
+
+  /**
+   * Hands a row to the workers. Called from the step thread only.
+   */
+  public void submit( Object[] row, Object[] lastRow, int rowNumber ) {
+    RowTask task = new RowTask( row, lastRow, rowNumber, completed );
+    if ( ordered ) {
+      reorderBuffer.add( task );
+    }
+    inFlight++;
+    queue.add( task );
+  }
+
+  /**
+   * @return true if no more rows should be submitted before some results are taken
+   */
+  public boolean isFull() {
+    return inFlight >= maxInFlight;
+  }
+
+  public boolean isEmpty() {
+    return inFlight == 0;
+  }
+
+  /**
+   * Takes the next result: the next one in input order in ordered mode, any finished one otherwise.
+   *
+   * @param wait whether to wait for a row to be evaluated
+   * @return the evaluated row, or null if there are no rows or (when not waiting) no row is ready yet
+   */
+  public RowTask take( boolean wait ) throws KettleException {
+    if ( inFlight == 0 ) {
+      return null;
+    }
+    RowTask task = ordered ? takeOrdered( wait ) : takeCompleted( wait );
+    if ( task != null ) {
+      inFlight--;
+    }
+    return task;
+  }
+
+  private RowTask takeCompleted( boolean wait ) throws KettleException {
+    try {
+      return wait ? completed.take() : completed.poll();
+    } catch ( InterruptedException e ) {
+      throw new KettleException( e );
+    }
+  }
+
+  private RowTask takeOrdered( boolean wait ) throws KettleException {
+    RowTask head = reorderBuffer.peek();
+    if ( head == null ) {
+      return null;
+    }
+    if ( !head.isDone() ) {
+      if ( !wait ) {
+        return null;
+      }
+      try {
+        head.await();
+      } catch ( InterruptedException e ) {
+        throw new KettleException( e );
+      }
+    }
+    return reorderBuffer.poll();
+  }
+
+  /**
+   * Stops the workers once they have evaluated the rows already submitted.
+   */
+  public void stop() {
+    for ( int i = 0; i < threads.length; i++ ) {
+      queue.add( STOP );
+    }
+  }
+
+  /**
+   * Stops the workers right away, dropping the rows not evaluated yet. Rows being evaluated at that moment are marked as
+   * cancelled (see {@link RowTask#isCancelled()}), not as failed.
+   * <p>
+   * Interrupting the workers is safe: a worker blocked on the queue just ends, and one evaluating a row owns its engine,
+   * nobody else uses it. If the interrupt breaks an evaluation halfway, that engine may be left in an unknown state, but
+   * the step only gives the engines back to the pool when no row was in flight, so such an engine is never reused.
+   */
+  public void abort() {
+    aborted = true;
+    queue.clear();
+    stop();
+    for ( Thread thread : threads ) {
+      thread.interrupt();
+    }
+  }
+
+  public int getNrWorkers() {
+    return threads.length;
+  }
+
+  /**
+   * @return the evaluators of the workers, they are only free to be used elsewhere when no row is in flight
+   */
+  public ScriptEvaluator[] getEvaluators() {
+    return evaluators;
+  }
+
+  public boolean isOrdered() {
+    return ordered;
+  }
+
+  /**
+   * @return the number of rows each worker has taken so far, can be read from any thread
+   */
+  public long[] getRowsPerWorker() {
+    long[] counts = new long[rowsPerWorker.length()];
+    for ( int i = 0; i < counts.length; i++ ) {
+      counts[i] = rowsPerWorker.get( i );
+    }
+    return counts;
+  }
+}
@@ -0,0 +1,451 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.script.Bindings;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * A Bindings implementation backed directly by the current row. The used input fields are resolved to row slots once
+ * (see {@link #setRowMeta(RowMetaInterface, int[])}), so moving on to the next row is just a matter of swapping the
+ * row reference in {@link #setRow(Object[], Object[], int)} instead of putting every value into a hash map.
+ * <p/>
+ * The values that don't change during the run of the step (step, constants, additional classes, ...) are bound once
+ * into the step scope with {@link #putStepScope(String, Object)}. The variables the script creates are kept in a
+ * regular map, which shadows the step scope if the script assigns to one of its names. So after the first row, the
+ * only map writes are the ones the script makes itself (see {@link #getWriteCount()}).
+ * <p/>
+ * The objects of the step's script API (status, output, fields, ...) are bound with
+ * {@link #putReserved(String, Object)} instead, they win over an input field with the same name. Such a field can
+ * still be read through the row view or the row.
+ * <p/>
+ * Engines that only work with their own bindings (see {@link EngineProfile#supportsForeignBindings()}) get those
+ * instead, and these bindings become a front for them (see {@link #setTarget(Bindings)}). The zero-copy row access
+ * and the lazy decoding don't apply to these engines: the used fields are copied into the engine's bindings, decoded,
+ * for every row.
+ *
+ * @author Matt Burgess
+ */
+public class RowBindings extends AbstractMap<String, Object> implements Bindings {
+
+  public static final String ROW = "row";
+  public static final String LAST_ROW = "lastRow";
+  public static final String ROW_META = "rowMeta";
+  public static final String ROW_NUMBER = "rowNumber";
+
+  private static final int REF_ROW = -1;
+  private static final int REF_LAST_ROW = -2;
+  private static final int REF_ROW_META = -3;
+  private static final int REF_ROW_NUMBER = -4;
+
+  /**
+   * Marks a field slot that has not been assigned by the script for the current row
+   */
+  private static final Object UNSET = new Object();
+
+  private final Map<String, Object> variables = new HashMap<String, Object>();
+  private final Map<String, Object> stepScope = new HashMap<String, Object>();
+  private final Set<String> reserved = new HashSet<String>();
+  private long writes;
+
+  // The index plan: binding name -> field reference (>= 0) or one of the REF_ constants
+  private final Map<String, Integer> plan = new HashMap<String, Integer>();
+
+  private String[] fieldNames = new String[0];
+  private int[] fieldIndexes = new int[0];
+  private ValueMetaInterface[] fieldMetas = new ValueMetaInterface[0];
+  private Object[] assigned = new Object[0];
+  private boolean dirty = false;
+
+  // Lazy conversion: fields in binary string (or indexed) storage are decoded on first access, once per row
+  private boolean[] needsDecoding = new boolean[0];
+  private Object[] decoded = new Object[0];
+  private boolean decodedDirty = false;
+
+  // The engine's own bindings, when the engine can't work with these ones
+  private Bindings target;
+
+  private RowMetaInterface rowMeta;
+  private Object[] row;
+  private Object[] lastRow;
+  private int rowNumber;
+
+  public RowBindings() {
+    plan.put( ROW, REF_ROW );
+    plan.put( LAST_ROW, REF_LAST_ROW );
+    plan.put( ROW_META, REF_ROW_META );
+    plan.put( ROW_NUMBER, REF_ROW_NUMBER );
+  }
+
+  /**
+   * Builds the index plan for the given row layout.
+   *
+   * @param rowMeta    the metadata of the incoming rows, can be null when there is no input
+   * @param fieldsUsed the indexes of the fields the script refers to, can be null. Fields named after a reserved name
+   *                   are left out.
+   */
+  public void setRowMeta( RowMetaInterface rowMeta, int[] fieldsUsed ) {
+    for ( String fieldName : fieldNames ) {
+      plan.remove( fieldName );
+    }
+    if ( rowMeta != null && fieldsUsed != null && !reserved.isEmpty() ) {
+      fieldsUsed = withoutReserved( rowMeta, fieldsUsed );
+    }
+    int nrFields = rowMeta == null || fieldsUsed == null ? 0 : fieldsUsed.length;
+    fieldNames = new String[nrFields];
+    fieldIndexes = new int[nrFields];
+    fieldMetas = new ValueMetaInterface[nrFields];
+    assigned = new Object[nrFields];
+    needsDecoding = new boolean[nrFields];
+    decoded = new Object[nrFields];
+    for ( int i = 0; i < nrFields; i++ ) {
+      fieldMetas[i] = rowMeta.getValueMeta( fieldsUsed[i] );
+      needsDecoding[i] = fieldMetas[i].getStorageType() != ValueMetaInterface.STORAGE_TYPE_NORMAL;
+      decoded[i] = UNSET;
+      fieldNames[i] = fieldMetas[i].getName();
+      fieldIndexes[i] = fieldsUsed[i];
+      assigned[i] = UNSET;
+      variables.remove( fieldNames[i] );
+      plan.put( fieldNames[i], i );
+    }
+    dirty = false;
+    decodedDirty = false;
+    this.rowMeta = rowMeta;
+    if ( target != null ) {
+      target.put( ROW_META, rowMeta );
+    }
+  }
+
+  /**
+   * Makes these bindings a front for the engine's own bindings, for engines that can't evaluate against foreign
+   * bindings. The step scope values, and the row and used fields of every row, are then copied into the engine's
+   * bindings, and everything else is read from and written to them.
+   * <p/>
+   * Only the fields the script analyzer found in the script are copied, but all of them on every row, and lazily
+   * converted ones are decoded before they're copied, as the engine reads its own bindings without asking these ones.
+   * The row metadata doesn't change from row to row, it's only copied here.
+   *
+   * @param target the bindings created by the engine
+   */
+  public void setTarget( Bindings target ) {
+    this.target = target;
+    target.putAll( stepScope );
+    target.put( ROW_META, rowMeta );
+    copyRow();
+  }
+
+  /**
+   * @return the engine's own bindings, or null if the engine evaluates against these bindings
+   */
+  public Bindings getTarget() {
+    return target;
+  }
+
+  /**
+   * Points the bindings at the next row. Values the script assigned to row fields during the previous row are
+   * forgotten.
+   */
+  public void setRow( Object[] row, Object[] lastRow, int rowNumber ) {
+    this.row = row;
+    this.lastRow = lastRow;
+    this.rowNumber = rowNumber;
+    if ( dirty ) {
+      for ( int i = 0; i < assigned.length; i++ ) {
+        assigned[i] = UNSET;
+      }
+      dirty = false;
+    }
+    if ( decodedDirty ) {
+      for ( int i = 0; i < decoded.length; i++ ) {
+        decoded[i] = UNSET;
+      }
+      decodedDirty = false;
+    }
+    if ( target != null ) {
+      copyRow();
+    }
+  }
+
+  private void copyRow() {
+    target.put( ROW, row );
+    target.put( LAST_ROW, lastRow );
+    target.put( ROW_NUMBER, rowNumber );
+    for ( int i = 0; i < fieldNames.length; i++ ) {
+      target.put( fieldNames[i], getFieldValue( i ) );
+    }
+  }
+
+  /**
+   * Binds a value for the whole run of the step. Meant to be called while the evaluator is set up, not per row.
+   */
+  public void putStepScope( String key, Object value ) {
+    checkKey( key );
+    stepScope.put( key, value );
+    if ( target != null ) {
+      target.put( key, value );
+    }
+  }
+
+  /**
+   * Binds an object of the script API for the whole run of the step. Unlike {@link #putStepScope(String, Object)},
+   * the name isn't taken by an input field of the same name, that field is no longer bound as a variable.
+   */
+  public void putReserved( String key, Object value ) {
+    putStepScope( key, value );
+    if ( reserved.add( key ) ) {
+      Integer ref = plan.get( key );
+      if ( ref != null && ref >= 0 ) {
+        setRowMeta( rowMeta, fieldIndexes );
+        if ( target != null ) {
+          target.put( key, value );
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if the name is bound to an object of the script API, see {@link #putReserved(String, Object)}
+   */
+  public boolean isReserved( String key ) {
+    return reserved.contains( key );
+  }
+
+  private int[] withoutReserved( RowMetaInterface rowMeta, int[] fieldsUsed ) {
+    int nrFields = 0;
+    int[] kept = new int[fieldsUsed.length];
+    for ( int index : fieldsUsed ) {
+      if ( !reserved.contains( rowMeta.getValueMeta( index ).getName() ) ) {
+        kept[nrFields++] = index;
+      }
+    }
+    if ( nrFields == kept.length ) {
+      return fieldsUsed;
+    }
+    int[] result = new int[nrFields];
+    System.arraycopy( kept, 0, result, 0, nrFields );
+    return result;
+  }
+
+  /**
+   * @return the values bound for the whole run of the step
+   */
+  public Map<String, Object> getStepScope() {
+    return stepScope;
+  }
+
+  /**
+   * @return the number of values written to the bindings outside of the step scope
+   */
+  public long getWriteCount() {
+    return writes;
+  }
+
+  public Object[] getRow() {
+    return row;
+  }
+
+  public RowMetaInterface getRowMeta() {
+    return rowMeta;
+  }
+
+  public Object get( Object key ) {
+    if ( target != null ) {
+      return target.get( key );
+    }
+    Integer ref = plan.get( key );
+    if ( ref == null ) {
+      Object value = variables.get( key );
+      if ( value == null && !stepScope.isEmpty() && !variables.containsKey( key ) ) {
+        value = stepScope.get( key );
+      }
+      return value;
+    }
+    switch ( ref ) {
+      case REF_ROW:
+        return row;
+      case REF_LAST_ROW:
+        return lastRow;
+      case REF_ROW_META:
+        return rowMeta;
+      case REF_ROW_NUMBER:
+        return rowNumber;
+      default:
+        return getFieldValue( ref );
+    }
+  }
+
+  private Object getFieldValue( int ref ) {
+    if ( assigned[ref] != UNSET ) {
+      return assigned[ref];
+    }
+    if ( row == null ) {
+      return null;
+    }
+    if ( !needsDecoding[ref] ) {
+      return row[fieldIndexes[ref]];
+    }
+    if ( decoded[ref] != UNSET ) {
+      return decoded[ref];
+    }
+    // The row itself keeps the undecoded value, so fields the script doesn't change pass through as they came in
+    try {
+      Object value = fieldMetas[ref].convertToNormalStorageType( row[fieldIndexes[ref]] );
+      decoded[ref] = value;
+      decodedDirty = true;
+      return value;
+    } catch ( KettleValueException e ) {
+      throw new IllegalStateException( "Unable to convert value of field [" + fieldNames[ref] + "]", e );
+    }
+  }
+
+  public Object put( String key, Object value ) {
+    checkKey( key );
+    writes++;
+    if ( target != null ) {
+      return target.put( key, value );
+    }
+    Integer ref = plan.get( key );
+    if ( ref == null ) {
+      if ( !variables.containsKey( key ) && stepScope.containsKey( key ) ) {
+        // The script shadows a step scope value, the step scope itself is only written while setting up
+        variables.put( key, value );
+        return stepScope.get( key );
+      }
+      return variables.put( key, value );
+    }
+    Object previous = get( key );
+    switch ( ref ) {
+      case REF_ROW:
+        row = (Object[]) value;
+        break;
+      case REF_LAST_ROW:
+        lastRow = (Object[]) value;
+        break;
+      case REF_ROW_META:
+        rowMeta = (RowMetaInterface) value;
+        break;
+      case REF_ROW_NUMBER:
+        rowNumber = value == null ? 0 : ( (Number) value ).intValue();
+        break;
+      default:
+        assigned[ref] = value;
+        dirty = true;
+        break;
+    }
+    return previous;
+  }
+
+  public void putAll( Map<? extends String, ? extends Object> toMerge ) {
+    for ( Map.Entry<? extends String, ? extends Object> entry : toMerge.entrySet() ) {
+      put( entry.getKey(), entry.getValue() );
+    }
+  }
+
+  public boolean containsKey( Object key ) {
+    if ( target != null ) {
+      return target.containsKey( key );
+    }
+    return plan.containsKey( key ) || variables.containsKey( key ) || stepScope.containsKey( key );
+  }
+
+  public Object remove( Object key ) {
+    if ( target != null ) {
+      Object previous = target.remove( key );
+      if ( stepScope.containsKey( key ) ) {
+        // Like below, a step scope value shows through again
+        target.put( (String) key, stepScope.get( key ) );
+      }
+      return previous;
+    }
+    Integer ref = plan.get( key );
+    if ( ref == null ) {
+      // Only the script's own variables can be removed, a step scope value shows through again
+      return variables.remove( key );
+    }
+    // Row-backed entries can't be removed, only cleared
+    Object previous = get( key );
+    if ( ref >= 0 ) {
+      assigned[ref] = null;
+      dirty = true;
+    } else {
+      put( (String) key, null );
+    }
+    return previous;
+  }
+
+  public int size() {
+    if ( target != null ) {
+      return target.size();
+    }
+    int size = plan.size() + variables.size();
+    for ( String key : stepScope.keySet() ) {
+      if ( !variables.containsKey( key ) && !plan.containsKey( key ) ) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+  public void clear() {
+    if ( target != null ) {
+      // Like below, the step scope and the row stay bound
+      target.clear();
+      target.putAll( stepScope );
+      target.put( ROW_META, rowMeta );
+      copyRow();
+      return;
+    }
+    variables.clear();
+  }
+
+  /**
+   * Returns a snapshot of all the entries, only meant for engines that need to enumerate the bindings.
+   */
+  public Set<Map.Entry<String, Object>> entrySet() {
+    if ( target != null ) {
+      return target.entrySet();
+    }
+    Map<String, Object> snapshot = new HashMap<String, Object>( stepScope );
+    snapshot.putAll( variables );
+    for ( String key : plan.keySet() ) {
+      snapshot.put( key, get( key ) );
+    }
+    return snapshot.entrySet();
+  }
+
+  private static void checkKey( String key ) {
+    if ( key == null ) {
+      throw new NullPointerException( "key can not be null" );
+    }
+    if ( key.length() == 0 ) {
+      throw new IllegalArgumentException( "key can not be empty" );
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.pentaho.di.core.exception.KettleValueException;
+
+/**
+ * Lets a script write any number of output rows for one input row. It is bound to the script as "emitter" (see
+ * {@link #EMITTER}):
+ * <ul>
+ * <li>emitter.emit() writes a row with the current values of the output fields</li>
+ * <li>emitter.emit(value1, value2, ...) writes a row with the given values for the output fields, in the order of the
+ * fields grid</li>
+ * </ul>
+ * Each emitted row is a copy of the input row with the output fields added (or replaced). When the script emits rows,
+ * they are written instead of the regular output row. To write no row at all, set trans_Status to
+ * SKIP_TRANSFORMATION.
+ *
+ * @author Matt Burgess
+ */
+public class RowEmitter {
+
+  /**
+   * The name the emitter is bound to. "out" is not used, Groovy binds its print writer to it.
+   */
+  public static final String EMITTER = "emitter";
+
+  private final ScriptEvaluator evaluator;
+  private final List<Object[]> rows = new ArrayList<Object[]>();
+  private Object[] inputRow;
+
+  public RowEmitter( ScriptEvaluator evaluator ) {
+    this.evaluator = evaluator;
+  }
+
+  /**
+   * Emits a row with the current values of the output fields.
+   */
+  public void emit() throws KettleValueException {
+    rows.add( evaluator.buildOutputRow( inputRow, null, null, true ) );
+  }
+
+  /**
+   * Emits a row with the given values for the output fields, missing values are null.
+   */
+  public void emit( Object... values ) throws KettleValueException {
+    rows.add( evaluator.buildOutputRow( inputRow, null, values == null ? new Object[0] : values, true ) );
+  }
+
+  /**
+   * @return the number of rows emitted for the current input row
+   */
+  public int getCount() {
+    return rows.size();
+  }
+
+  /**
+   * Starts over for the next input row.
+   */
+  void reset( Object[] inputRow ) {
+    this.inputRow = inputRow;
+    if ( !rows.isEmpty() ) {
+      rows.clear();
+    }
+  }
+
+  /**
+   * @return the rows emitted for the current input row, only valid until the next row is evaluated
+   */
+  List<Object[]> getRows() {
+    return rows.isEmpty() ? Collections.<Object[]>emptyList() : rows;
+  }
+}
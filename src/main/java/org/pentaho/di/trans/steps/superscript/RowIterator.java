@@ -0,0 +1,91 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.pentaho.di.core.exception.KettleException;
+
+/**
+ * Stream mode: iterates over all the incoming rows of the step, reading them from the input row sets as the script
+ * asks for them. Moving to the next row writes the rows the script emitted for the previous one and points the field
+ * variables at the new row, so a script can be written as a loop of its own:
+ * <pre>
+ * for ( row in rows ) {
+ *   emitter.emit( amount * 2 )
+ * }
+ * </pre>
+ * The iterator is bound to the script as "rows" (see {@link SuperScript#STREAM_ROWS}). It ends early when the step is
+ * stopped or the script calls status.abort() or status.error(). Errors reading or writing rows are thrown as
+ * IllegalStateException, as Iterator methods can't throw checked exceptions.
+ *
+ * @author Matt Burgess
+ */
+public class RowIterator implements Iterator<Object[]> {
+
+  private final SuperScript step;
+  private Object[] nextRow;
+  private boolean done;
+
+  /**
+   * @param firstRow the first row, already read by the step to initialize the script, null if there is no input
+   */
+  public RowIterator( SuperScript step, Object[] firstRow ) {
+    this.step = step;
+    this.nextRow = firstRow;
+    this.done = firstRow == null;
+  }
+
+  public boolean hasNext() {
+    if ( nextRow == null && !done ) {
+      try {
+        nextRow = step.getRow();
+      } catch ( KettleException e ) {
+        throw new IllegalStateException( e.getMessage(), e );
+      }
+      done = nextRow == null;
+    }
+    if ( step.isStopped() || step.isStreamHalted() ) {
+      done = true;
+      nextRow = null;
+    }
+    return nextRow != null;
+  }
+
+  public Object[] next() {
+    if ( !hasNext() ) {
+      throw new NoSuchElementException();
+    }
+    Object[] row = nextRow;
+    nextRow = null;
+    try {
+      step.startStreamRow( row );
+    } catch ( KettleException e ) {
+      throw new IllegalStateException( e.getMessage(), e );
+    }
+    return row;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
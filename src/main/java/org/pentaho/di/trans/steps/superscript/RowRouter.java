@@ -0,0 +1,113 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.i18n.BaseMessages;
+
+/**
+ * Lets a script send the current row to one or more of the target streams of the step (see
+ * {@link SuperScriptMeta#getTargetName()}). It is bound to the script as "router" (see {@link #ROUTER}) when the step
+ * has targets:
+ * <ul>
+ * <li>router.route("name1", "name2", ...) sends the output row(s) of the current row to the given targets</li>
+ * <li>router.clear() forgets the targets chosen so far for the current row</li>
+ * </ul>
+ * A row the script doesn't route goes to the next steps that aren't targets, distributed over them or copied to each
+ * of them like the rows of the step without targets. If all the next steps are targets, rows that aren't routed are
+ * dropped.
+ *
+ * @author Matt Burgess
+ */
+public class RowRouter {
+  private static Class<?> PKG = SuperScriptMeta.class; // for i18n purposes, needed by Translator2!!
+
+  /**
+   * The name the router is bound to
+   */
+  public static final String ROUTER = "router";
+
+  private final String[] targetNames;
+  private final boolean[] selected;
+  private int nrSelected;
+
+  /**
+   * @param targetNames the names of the target streams, in the order of the step's target streams
+   */
+  public RowRouter( String[] targetNames ) {
+    this.targetNames = targetNames;
+    this.selected = new boolean[targetNames.length];
+  }
+
+  /**
+   * Sends the output row(s) of the current row to the given targets, on top of the ones already chosen.
+   */
+  public void route( String... names ) throws KettleStepException {
+    for ( String name : names ) {
+      int index = indexOf( name );
+      if ( index < 0 ) {
+        throw new KettleStepException( BaseMessages.getString( PKG, "SuperScript.Exception.UnknownTarget", name ) );
+      }
+      if ( !selected[index] ) {
+        selected[index] = true;
+        nrSelected++;
+      }
+    }
+  }
+
+  /**
+   * Forgets the targets chosen for the current row.
+   */
+  public void clear() {
+    if ( nrSelected > 0 ) {
+      for ( int i = 0; i < selected.length; i++ ) {
+        selected[i] = false;
+      }
+      nrSelected = 0;
+    }
+  }
+
+  /**
+   * @return the indexes of the targets chosen for the current row, or null if the script didn't route the row
+   */
+  int[] getRoutes() {
+    if ( nrSelected == 0 ) {
+      return null;
+    }
+    int[] routes = new int[nrSelected];
+    int n = 0;
+    for ( int i = 0; i < selected.length; i++ ) {
+      if ( selected[i] ) {
+        routes[n++] = i;
+      }
+    }
+    return routes;
+  }
+
+  private int indexOf( String name ) {
+    for ( int i = 0; i < targetNames.length; i++ ) {
+      if ( targetNames[i] != null && targetNames[i].equals( name ) ) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
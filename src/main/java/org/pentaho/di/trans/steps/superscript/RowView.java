@@ -0,0 +1,252 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.script.Bindings;
+
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Gives the script access to the fields of the current row by name or by index, without binding every field as a
+ * variable. It is bound to the script as "fields" (see {@link #FIELDS}) and the same instance is pointed at every new
+ * row, so field access doesn't allocate anything per row:
+ * <ul>
+ * <li>fields.get("name"), fields.get(i): the value, decoded if the field is lazily converted</li>
+ * <li>fields.getLong(i), fields.getDouble("amount"), ...: the value converted to a primitive, 0 (or false) for
+ * null</li>
+ * <li>fields.isNull("name"): whether the value is null</li>
+ * <li>fields.set("name", value): sets an output field of the step (in the {@link OutputBuffer}), or replaces the
+ * value of an input field in the row, converted to the type of the field</li>
+ * </ul>
+ * The name to index table is built once from the input row metadata.
+ *
+ * @author Matt Burgess
+ */
+public class RowView {
+
+  /**
+   * The name the row view is bound to
+   */
+  public static final String FIELDS = "fields";
+
+  private final Map<String, Integer> inputIndexes = new HashMap<String, Integer>();
+  private final ValueMetaInterface[] valueMetas;
+  private final boolean[] normalStorage;
+  private final Class<?>[] nativeClasses;
+  private final FieldConverter[] converters;
+  private final OutputBuffer output;
+  private final Bindings bindings;
+  private Object[] row;
+
+  /**
+   * @param rowMeta  the metadata of the input rows, can be null when there is no input
+   * @param output   the output buffer the output fields are set in
+   * @param bindings the bindings the output fields not set in the buffer are read from
+   */
+  public RowView( RowMetaInterface rowMeta, OutputBuffer output, Bindings bindings ) {
+    this.output = output;
+    this.bindings = bindings;
+    int size = rowMeta == null ? 0 : rowMeta.size();
+    valueMetas = new ValueMetaInterface[size];
+    normalStorage = new boolean[size];
+    nativeClasses = new Class<?>[size];
+    converters = new FieldConverter[size];
+    for ( int i = 0; i < size; i++ ) {
+      valueMetas[i] = rowMeta.getValueMeta( i );
+      normalStorage[i] = valueMetas[i].isStorageNormal();
+      nativeClasses[i] = OutputBuffer.getNativeClass( valueMetas[i].getType() );
+      if ( !inputIndexes.containsKey( valueMetas[i].getName() ) ) {
+        inputIndexes.put( valueMetas[i].getName(), i );
+      }
+    }
+  }
+
+  /**
+   * Points the view at the next row.
+   */
+  void setRow( Object[] row ) {
+    this.row = row;
+  }
+
+  /**
+   * @return the index of the given input field, -1 if there is no such field
+   */
+  public int indexOf( String name ) {
+    Integer index = inputIndexes.get( name );
+    return index == null ? -1 : index;
+  }
+
+  /**
+   * @return the number of input fields
+   */
+  public int size() {
+    return valueMetas.length;
+  }
+
+  public Object get( int index ) throws KettleValueException {
+    Object value = raw( index );
+    return normalStorage[index] ? value : valueMetas[index].convertToNormalStorageType( value );
+  }
+
+  /**
+   * @return the value of the given input field, or the value set for the given output field
+   */
+  public Object get( String name ) throws KettleValueException {
+    int outputIndex = output.indexOf( name );
+    if ( outputIndex >= 0 && ( output.isSet( outputIndex ) || !inputIndexes.containsKey( name ) ) ) {
+      return output.isSet( outputIndex ) ? output.get( outputIndex ) : bindings.get( name );
+    }
+    return get( index( name ) );
+  }
+
+  public String getString( int index ) throws KettleValueException {
+    return valueMetas[index].getString( raw( index ) );
+  }
+
+  public String getString( String name ) throws KettleValueException {
+    return getString( index( name ) );
+  }
+
+  public long getLong( int index ) throws KettleValueException {
+    Object value = raw( index );
+    if ( value instanceof Long ) {
+      return (Long) value;
+    }
+    Long converted = valueMetas[index].getInteger( value );
+    return converted == null ? 0L : converted;
+  }
+
+  public long getLong( String name ) throws KettleValueException {
+    return getLong( index( name ) );
+  }
+
+  public double getDouble( int index ) throws KettleValueException {
+    Object value = raw( index );
+    if ( value instanceof Double ) {
+      return (Double) value;
+    }
+    Double converted = valueMetas[index].getNumber( value );
+    return converted == null ? 0.0 : converted;
+  }
+
+  public double getDouble( String name ) throws KettleValueException {
+    return getDouble( index( name ) );
+  }
+
+  public boolean getBoolean( int index ) throws KettleValueException {
+    Object value = raw( index );
+    if ( value instanceof Boolean ) {
+      return (Boolean) value;
+    }
+    Boolean converted = valueMetas[index].getBoolean( value );
+    return converted != null && converted;
+  }
+
+  public boolean getBoolean( String name ) throws KettleValueException {
+    return getBoolean( index( name ) );
+  }
+
+  public boolean isNull( int index ) throws KettleValueException {
+    return valueMetas[index].isNull( raw( index ) );
+  }
+
+  public boolean isNull( String name ) throws KettleValueException {
+    return isNull( index( name ) );
+  }
+
+  /**
+   * Replaces the value of an input field in the current row. The value is converted to the type of the field like the
+   * values of output fields are.
+   *
+   * @throws KettleValueException if the value can't be converted to the type of the field
+   */
+  public void set( int index, Object value ) throws KettleValueException {
+    if ( row == null ) {
+      throw new KettleValueException( "There is no current row to set field #" + ( index + 1 ) + " in" );
+    }
+    if ( !normalStorage[index] ) {
+      // The row keeps the field in its lazily converted form, a native value can't be stored in it
+      throw new KettleValueException( "Field [" + valueMetas[index].getName()
+        + "] is lazily converted and can only be set as an output field" );
+    }
+    row[index] = convert( index, value );
+  }
+
+  private Object convert( int index, Object value ) throws KettleValueException {
+    Class<?> nativeClass = nativeClasses[index];
+    if ( value == null || ( nativeClass != null && nativeClass.isInstance( value ) ) ) {
+      return value;
+    }
+    int type = valueMetas[index].getType();
+    if ( nativeClass == null && type != ValueMetaInterface.TYPE_DATE ) {
+      // Timestamps, serializable values, ...: there is nothing to convert them with, keep them as they are
+      return value;
+    }
+    Object converted;
+    try {
+      if ( converters[index] == null ) {
+        converters[index] = new FieldConverter( valueMetas[index].getName(), type );
+      }
+      converted = converters[index].convert( value );
+    } catch ( Exception e ) {
+      throw new KettleValueException( cannotSet( index, value ), e );
+    }
+    if ( converted != null && nativeClass != null && !nativeClass.isInstance( converted ) ) {
+      // Booleans for one are passed through as they are
+      throw new KettleValueException( cannotSet( index, value ) );
+    }
+    return converted;
+  }
+
+  private String cannotSet( int index, Object value ) {
+    return "Unable to set field [" + valueMetas[index].getName() + "] of type " + valueMetas[index].getTypeDesc()
+      + " to a " + value.getClass().getName() + " (" + value + ")";
+  }
+
+  /**
+   * Sets an output field of the step, or replaces the value of an input field in the current row.
+   */
+  public void set( String name, Object value ) throws KettleValueException {
+    int outputIndex = output.indexOf( name );
+    if ( outputIndex >= 0 ) {
+      output.set( outputIndex, value );
+    } else {
+      set( index( name ), value );
+    }
+  }
+
+  private Object raw( int index ) {
+    return row == null ? null : row[index];
+  }
+
+  private int index( String name ) throws KettleValueException {
+    Integer index = inputIndexes.get( name );
+    if ( index == null ) {
+      throw new KettleValueException( "Unknown field [" + name + "]" );
+    }
+    return index;
+  }
+}
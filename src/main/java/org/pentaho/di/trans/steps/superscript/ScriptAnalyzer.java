@@ -0,0 +1,39 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import java.util.Set;
+
+/**
+ * Finds the names a script can refer to, so the step only binds the input fields the script actually uses. See
+ * {@link ScriptAnalyzers} for the analyzers per language.
+ *
+ * @author Matt Burgess
+ */
+public interface ScriptAnalyzer {
+
+  /**
+   * @param script the script source
+   * @return the identifiers used in the code of the script (not in comments), and the contents of its string literals
+   *         (which might be used to look variables up by name), or null if the script can't be analyzed
+   */
+  Set<String> getReferencedNames( String script );
+}
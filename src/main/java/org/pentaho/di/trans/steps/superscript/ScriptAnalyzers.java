@@ -0,0 +1,106 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link ScriptAnalyzer}s per script language. Analyzers for the common JSR-223 languages are registered up front,
+ * others (using a language's own parser for instance) can be registered by language name.
+ *
+ * @author Matt Burgess
+ */
+public class ScriptAnalyzers {
+
+  private static final TokenScriptAnalyzer.Delimiter[] C_COMMENTS = {
+    new TokenScriptAnalyzer.Delimiter( "/*", "*/", false, true ),
+    new TokenScriptAnalyzer.Delimiter( "//", "\n", false, false ) };
+
+  public static final ScriptAnalyzer JAVASCRIPT = new TokenScriptAnalyzer( C_COMMENTS,
+    new TokenScriptAnalyzer.Delimiter[]{
+      new TokenScriptAnalyzer.Delimiter( "`", "`", true, true ),
+      new TokenScriptAnalyzer.Delimiter( "\"", "\"", false, false ),
+      new TokenScriptAnalyzer.Delimiter( "'", "'", false, false ) }, true );
+
+  public static final ScriptAnalyzer GROOVY = new TokenScriptAnalyzer( C_COMMENTS,
+    new TokenScriptAnalyzer.Delimiter[]{
+      new TokenScriptAnalyzer.Delimiter( "$/", "/$", true, true ),
+      new TokenScriptAnalyzer.Delimiter( "\"\"\"", "\"\"\"", true, true ),
+      new TokenScriptAnalyzer.Delimiter( "'''", "'''", false, true ),
+      new TokenScriptAnalyzer.Delimiter( "\"", "\"", true, false ),
+      new TokenScriptAnalyzer.Delimiter( "'", "'", false, false ) }, true );
+
+  public static final ScriptAnalyzer PYTHON = new TokenScriptAnalyzer(
+    new TokenScriptAnalyzer.Delimiter[]{
+      new TokenScriptAnalyzer.Delimiter( "#", "\n", false, false ) },
+    new TokenScriptAnalyzer.Delimiter[]{
+      new TokenScriptAnalyzer.Delimiter( "\"\"\"", "\"\"\"", false, true ),
+      new TokenScriptAnalyzer.Delimiter( "'''", "'''", false, true ),
+      new TokenScriptAnalyzer.Delimiter( "\"", "\"", false, false ),
+      new TokenScriptAnalyzer.Delimiter( "'", "'", false, false ) } ) {
+    protected boolean isInterpolating( TokenScriptAnalyzer.Delimiter string, String prefix ) {
+      // f-strings, with an optional r (rf"...", fR"...")
+      return prefix != null && prefix.length() <= 2 && prefix.toLowerCase().indexOf( 'f' ) >= 0;
+    }
+  };
+
+  public static final ScriptAnalyzer RUBY = new TokenScriptAnalyzer(
+    new TokenScriptAnalyzer.Delimiter[]{
+      new TokenScriptAnalyzer.Delimiter( "=begin", "=end", false, true ),
+      new TokenScriptAnalyzer.Delimiter( "#", "\n", false, false ) },
+    new TokenScriptAnalyzer.Delimiter[]{
+      new TokenScriptAnalyzer.Delimiter( "\"", "\"", true, true ),
+      new TokenScriptAnalyzer.Delimiter( "`", "`", true, true ),
+      new TokenScriptAnalyzer.Delimiter( "'", "'", false, true ) }, true );
+
+  private static final ConcurrentMap<String, ScriptAnalyzer> analyzers = new ConcurrentHashMap<String, ScriptAnalyzer>();
+
+  static {
+    register( "ECMAScript", JAVASCRIPT );
+    register( "JavaScript", JAVASCRIPT );
+    register( "Groovy", GROOVY );
+    register( "Java", GROOVY );
+    register( "Scala", GROOVY );
+    register( "python", PYTHON );
+    register( "ruby", RUBY );
+  }
+
+  private ScriptAnalyzers() {
+  }
+
+  /**
+   * Registers the analyzer for a language, replacing the existing one if any.
+   *
+   * @param languageName the language name, as returned by the engine factory (case-insensitive)
+   * @param analyzer     the analyzer
+   */
+  public static void register( String languageName, ScriptAnalyzer analyzer ) {
+    analyzers.put( languageName.toLowerCase(), analyzer );
+  }
+
+  /**
+   * @return the analyzer for the given language, or null if there is none
+   */
+  public static ScriptAnalyzer forLanguage( String languageName ) {
+    return languageName == null ? null : analyzers.get( languageName.toLowerCase() );
+  }
+}
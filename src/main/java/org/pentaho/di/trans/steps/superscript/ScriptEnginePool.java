@@ -0,0 +1,335 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.SimpleScriptContext;
+
+import org.pentaho.di.core.Const;
+
+/**
+ * A bounded pool of idle script engines per language, so step copies and transformation runs can reuse engines instead
+ * of building new ones (which takes hundreds of milliseconds for JRuby or Jython). An engine is checked out by one step
+ * copy at a time and returned when the step is disposed.
+ * <p>
+ * The pool is configured with these variables (in kettle.properties):
+ * <ul>
+ * <li>SUPERSCRIPT_ENGINE_POOL_SIZE: the maximum number of idle engines per language, 0 disables pooling (default 8)</li>
+ * <li>SUPERSCRIPT_ENGINE_POOL_IDLE_TIMEOUT: the number of ms an engine can stay idle before it's evicted (default
+ * 300000)</li>
+ * <li>SUPERSCRIPT_ENGINE_RESET_POLICY: what to do with an engine when it's returned, see {@link ResetPolicy} (default
+ * CLEAR_BINDINGS)</li>
+ * </ul>
+ * Whatever the policy, a returned engine gets a fresh default script context, so the engine doesn't keep the bindings
+ * of the step (and with them the step and the transformation) reachable. Engines that keep script definitions in the
+ * engine itself (see {@link ScriptEngineRegistry#keepsEngineState(javax.script.ScriptEngineFactory)}) need more than
+ * that to be reused by someone else: the global closures and script classes of a Groovy engine are dropped, JRuby and
+ * Jython engines can't be cleaned up and are discarded.
+ *
+ * @author Matt Burgess
+ */
+public class ScriptEnginePool {
+
+  public static final String POOL_SIZE_VARIABLE = "SUPERSCRIPT_ENGINE_POOL_SIZE";
+  public static final String IDLE_TIMEOUT_VARIABLE = "SUPERSCRIPT_ENGINE_POOL_IDLE_TIMEOUT";
+  public static final String RESET_POLICY_VARIABLE = "SUPERSCRIPT_ENGINE_RESET_POLICY";
+
+  public static final int DEFAULT_POOL_SIZE = 8;
+  public static final long DEFAULT_IDLE_TIMEOUT = 300000L;
+
+  private static final String GROOVY_ENGINE_CLASS_NAME = "org.codehaus.groovy.jsr223.GroovyScriptEngineImpl";
+
+  /**
+   * What happens to an engine when it's returned to the pool.
+   */
+  public enum ResetPolicy {
+    /**
+     * Only replace the script context. What the engine keeps itself stays, like the functions a Groovy script defined
+     * (along with the context they were defined in) or the globals of JRuby and Jython, until the engine is evicted
+     */
+    NONE,
+    /**
+     * Replace the script context and clear what the engine keeps itself, so the next user starts from a clean engine.
+     * Engines that can't be cleared (JRuby and Jython interpreter globals) are discarded
+     */
+    CLEAR_BINDINGS,
+    /**
+     * Don't pool the engines at all, a returned engine is dropped
+     */
+    DISCARD;
+
+    static ResetPolicy fromString( String policy ) {
+      if ( !Const.isEmpty( policy ) ) {
+        for ( ResetPolicy value : values() ) {
+          if ( value.name().equalsIgnoreCase( policy.trim() ) ) {
+            return value;
+          }
+        }
+      }
+      return CLEAR_BINDINGS;
+    }
+  }
+
+  private static class IdleEngine {
+    final ScriptEngine engine;
+    final long idleSince;
+
+    IdleEngine( ScriptEngine engine, long idleSince ) {
+      this.engine = engine;
+      this.idleSince = idleSince;
+    }
+  }
+
+  private final Map<String, LinkedList<IdleEngine>> idleEngines = new HashMap<String, LinkedList<IdleEngine>>();
+  private final int maxIdlePerLanguage;
+  private final long idleTimeout;
+  private final ResetPolicy resetPolicy;
+
+  private long created;
+  private long reused;
+  private long returned;
+  private long evicted;
+  private long discarded;
+
+  public ScriptEnginePool( int maxIdlePerLanguage, long idleTimeout, ResetPolicy resetPolicy ) {
+    this.maxIdlePerLanguage = maxIdlePerLanguage;
+    this.idleTimeout = idleTimeout;
+    this.resetPolicy = resetPolicy;
+  }
+
+  /**
+   * @return a pool configured with the SUPERSCRIPT_ENGINE_* variables
+   */
+  public static ScriptEnginePool fromSystemProperties() {
+    return new ScriptEnginePool(
+      Math.max( 0, Const.toInt( System.getProperty( POOL_SIZE_VARIABLE ), DEFAULT_POOL_SIZE ) ),
+      Const.toLong( System.getProperty( IDLE_TIMEOUT_VARIABLE ), DEFAULT_IDLE_TIMEOUT ),
+      ResetPolicy.fromString( System.getProperty( RESET_POLICY_VARIABLE ) ) );
+  }
+
+  /**
+   * Checks out an idle engine for the given language, or creates a new one.
+   *
+   * @param languageName the script language
+   * @return the engine, owned by the caller until it's returned
+   */
+  public ScriptEngine checkout( String languageName ) {
+    synchronized ( this ) {
+      evictIdle( System.currentTimeMillis() );
+      LinkedList<IdleEngine> idle = idleEngines.get( languageName );
+      if ( idle != null && !idle.isEmpty() ) {
+        reused++;
+        // Most recently returned first, it's the most likely to still be warm
+        return idle.removeLast().engine;
+      }
+      created++;
+    }
+    return ScriptUtils.createNewScriptEngineByLanguage( languageName );
+  }
+
+  /**
+   * Returns an engine checked out with {@link #checkout(String)}. The engine must not be used by the caller anymore.
+   *
+   * @param languageName the language the engine was checked out for
+   * @param engine       the engine, can be null
+   */
+  public void checkin( String languageName, ScriptEngine engine ) {
+    if ( engine == null ) {
+      return;
+    }
+    // Detach the step's bindings even if the engine is dropped, a compiled script in the cache may keep it around
+    boolean detached = detach( engine );
+    if ( !detached || resetPolicy == ResetPolicy.DISCARD || maxIdlePerLanguage == 0
+      || ( resetPolicy == ResetPolicy.CLEAR_BINDINGS && !clearEngineState( engine ) ) ) {
+      synchronized ( this ) {
+        discarded++;
+      }
+      return;
+    }
+
+    synchronized ( this ) {
+      long now = System.currentTimeMillis();
+      evictIdle( now );
+      LinkedList<IdleEngine> idle = idleEngines.get( languageName );
+      if ( idle == null ) {
+        idle = new LinkedList<IdleEngine>();
+        idleEngines.put( languageName, idle );
+      }
+      returned++;
+      if ( idle.size() >= maxIdlePerLanguage ) {
+        // Drop the engine that has been idle the longest
+        idle.removeFirst();
+        evicted++;
+      }
+      idle.addLast( new IdleEngine( engine, now ) );
+    }
+  }
+
+  /**
+   * Gives the engine a fresh default script context with empty engine scope bindings, keeping the global scope.
+   *
+   * @return false if the context can't be replaced
+   */
+  static boolean detach( ScriptEngine engine ) {
+    try {
+      Bindings globalScope = engine.getBindings( ScriptContext.GLOBAL_SCOPE );
+      ScriptContext context = new SimpleScriptContext();
+      context.setBindings( engine.createBindings(), ScriptContext.ENGINE_SCOPE );
+      if ( globalScope != null ) {
+        context.setBindings( globalScope, ScriptContext.GLOBAL_SCOPE );
+      }
+      engine.setContext( context );
+      return true;
+    } catch ( RuntimeException e ) {
+      return false;
+    }
+  }
+
+  /**
+   * Clears what the engine keeps outside of its script context. Engines that don't keep state of their own have
+   * nothing to clear, of the others only Groovy engines can be cleared: their global closures (the methods scripts
+   * defined, bound to the context they were defined in) and their script classes are replaced with empty ones. That
+   * is done through reflection, so the pool doesn't need Groovy.
+   *
+   * @return true if the engine is clean, false if it can't be cleared
+   */
+  static boolean clearEngineState( ScriptEngine engine ) {
+    if ( !ScriptEngineRegistry.keepsEngineState( engine.getFactory() ) ) {
+      return true;
+    }
+    if ( !GROOVY_ENGINE_CLASS_NAME.equals( engine.getClass().getName() ) ) {
+      return false;
+    }
+    try {
+      clearField( engine, "globalClosures" );
+      clearField( engine, "classMap" );
+      // A new class loader, so the classes scripts declared are gone too
+      Method getClassLoader = engine.getClass().getMethod( "getClassLoader" );
+      ClassLoader loader = (ClassLoader) getClassLoader.invoke( engine );
+      Object newLoader = loader.getClass().getConstructor( ClassLoader.class ).newInstance( loader.getParent() );
+      engine.getClass().getMethod( "setClassLoader", getClassLoader.getReturnType() ).invoke( engine, newLoader );
+      return true;
+    } catch ( Exception e ) {
+      // Another Groovy version
+      return false;
+    }
+  }
+
+  /**
+   * Empties the map in the given field: a java.util.Map is cleared, a Groovy managed map (which has no clear()) is
+   * replaced with a new one on the same reference bundle.
+   */
+  private static void clearField( Object object, String fieldName ) throws Exception {
+    Field field = object.getClass().getDeclaredField( fieldName );
+    field.setAccessible( true );
+    Object map = field.get( object );
+    if ( map instanceof Map ) {
+      ( (Map<?, ?>) map ).clear();
+      return;
+    }
+    Field bundle = null;
+    for ( Class<?> c = map.getClass(); c != null && bundle == null; c = c.getSuperclass() ) {
+      try {
+        bundle = c.getDeclaredField( "bundle" );
+      } catch ( NoSuchFieldException e ) {
+        // Try the superclass
+      }
+    }
+    if ( bundle == null ) {
+      throw new NoSuchFieldException( "bundle" );
+    }
+    bundle.setAccessible( true );
+    field.set( object, map.getClass().getConstructor( bundle.getType() ).newInstance( bundle.get( map ) ) );
+  }
+
+  /**
+   * Drops the engines that have been idle for longer than the idle timeout. Must be called while holding the lock.
+   */
+  private void evictIdle( long now ) {
+    if ( idleTimeout <= 0 ) {
+      return;
+    }
+    for ( Iterator<LinkedList<IdleEngine>> it = idleEngines.values().iterator(); it.hasNext(); ) {
+      LinkedList<IdleEngine> idle = it.next();
+      // The oldest engines are at the front
+      while ( !idle.isEmpty() && now - idle.getFirst().idleSince > idleTimeout ) {
+        idle.removeFirst();
+        evicted++;
+      }
+      if ( idle.isEmpty() ) {
+        it.remove();
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    idleEngines.clear();
+  }
+
+  public synchronized int getIdleCount() {
+    int count = 0;
+    for ( LinkedList<IdleEngine> idle : idleEngines.values() ) {
+      count += idle.size();
+    }
+    return count;
+  }
+
+  public synchronized long getCreatedCount() {
+    return created;
+  }
+
+  public synchronized long getReusedCount() {
+    return reused;
+  }
+
+  public synchronized long getReturnedCount() {
+    return returned;
+  }
+
+  public synchronized long getEvictedCount() {
+    return evicted;
+  }
+
+  public synchronized long getDiscardedCount() {
+    return discarded;
+  }
+
+  public ResetPolicy getResetPolicy() {
+    return resetPolicy;
+  }
+
+  /**
+   * @return a one-line summary of the pool statistics, for logging
+   */
+  public synchronized String getStatistics() {
+    return "idle=" + getIdleCount() + ", created=" + created + ", reused=" + reused + ", returned=" + returned
+      + ", evicted=" + evicted + ", discarded=" + discarded + ", reset=" + resetPolicy;
+  }
+}
@@ -0,0 +1,282 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptEngineManager;
+
+/**
+ * Resolves script engines from the engine factories found on the plugin class path. The factories are indexed once,
+ * when the registry is created, by language name, engine names (aliases), MIME types and file extensions. The indexes
+ * are read-only afterwards, so step copies initializing at the same time can resolve engines without locking.
+ * <p>
+ * The Groovy fallback engine is only created when the requested language can't be found.
+ *
+ * @author Matt Burgess
+ */
+public class ScriptEngineRegistry {
+
+  public static final String FALLBACK_ENGINE_NAME = "groovy";
+
+  /**
+   * Language or engine names of the engines that keep script definitions in the engine, see
+   * {@link #keepsEngineState(ScriptEngineFactory)}
+   */
+  private static final String[] STATEFUL_ENGINES = { "groovy", "ruby", "python" };
+
+  private final ScriptEngineManager manager;
+  private final List<ScriptEngineFactory> factories;
+  private final List<String> languageNames;
+
+  private final ConcurrentMap<String, List<ScriptEngineFactory>> byLanguage =
+    new ConcurrentHashMap<String, List<ScriptEngineFactory>>();
+  private final ConcurrentMap<String, List<ScriptEngineFactory>> byName =
+    new ConcurrentHashMap<String, List<ScriptEngineFactory>>();
+  private final ConcurrentMap<String, List<ScriptEngineFactory>> byMimeType =
+    new ConcurrentHashMap<String, List<ScriptEngineFactory>>();
+  private final ConcurrentMap<String, List<ScriptEngineFactory>> byExtension =
+    new ConcurrentHashMap<String, List<ScriptEngineFactory>>();
+
+  private final long indexTime;
+  private final AtomicLong resolutions = new AtomicLong();
+  private final AtomicLong resolutionTime = new AtomicLong();
+  private final AtomicLong fallbacks = new AtomicLong();
+
+  /**
+   * Discovers and indexes the engine factories visible from the given class loader.
+   */
+  public ScriptEngineRegistry( ClassLoader classLoader ) {
+    long start = System.nanoTime();
+    manager = new ScriptEngineManager( classLoader );
+    List<ScriptEngineFactory> engineFactories = manager.getEngineFactories();
+    factories = engineFactories == null
+      ? Collections.<ScriptEngineFactory>emptyList()
+      : Collections.unmodifiableList( new ArrayList<ScriptEngineFactory>( engineFactories ) );
+
+    List<String> names = new ArrayList<String>();
+    for ( ScriptEngineFactory factory : factories ) {
+      String languageName = factory.getLanguageName();
+      names.add( languageName );
+      index( byLanguage, languageName, factory );
+      index( byLanguage, lowerCase( languageName ), factory );
+      for ( String name : safe( factory.getNames() ) ) {
+        index( byName, lowerCase( name ), factory );
+      }
+      for ( String mimeType : safe( factory.getMimeTypes() ) ) {
+        index( byMimeType, lowerCase( mimeType ), factory );
+      }
+      for ( String extension : safe( factory.getExtensions() ) ) {
+        index( byExtension, lowerCase( extension ), factory );
+      }
+    }
+    languageNames = Collections.unmodifiableList( names );
+    indexTime = System.nanoTime() - start;
+  }
+
+  /**
+   * Creates an engine for the given language. The key is looked up as a language name first, then as an engine name,
+   * a MIME type and a file extension. Falls back to Groovy for backward compatibility.
+   *
+   * @param languageName the language name (or engine name, MIME type, extension)
+   * @return a new engine, or null if neither the language nor the fallback engine can be found
+   */
+  public ScriptEngine createEngineByLanguage( String languageName ) {
+    long start = System.nanoTime();
+    try {
+      ScriptEngine engine = createEngine( findFactories( languageName ) );
+      if ( engine == null ) {
+        engine = createFallbackEngine();
+      }
+      return engine;
+    } finally {
+      resolutions.incrementAndGet();
+      resolutionTime.addAndGet( System.nanoTime() - start );
+    }
+  }
+
+  /**
+   * Creates an engine by engine name, like {@link ScriptEngineManager#getEngineByName(String)} does. Falls back to
+   * Groovy for backward compatibility.
+   *
+   * @param engineName the engine name
+   * @return a new engine, or null if neither the engine nor the fallback engine can be found
+   */
+  public ScriptEngine createEngineByName( String engineName ) {
+    long start = System.nanoTime();
+    try {
+      ScriptEngine engine = createEngine( engineName == null ? null : byName.get( lowerCase( engineName ) ) );
+      if ( engine == null ) {
+        engine = createFallbackEngine();
+      }
+      return engine;
+    } finally {
+      resolutions.incrementAndGet();
+      resolutionTime.addAndGet( System.nanoTime() - start );
+    }
+  }
+
+  /**
+   * @return the factories for the given language name, engine name, MIME type or extension, or null if there are none
+   */
+  public List<ScriptEngineFactory> findFactories( String key ) {
+    if ( key == null ) {
+      return null;
+    }
+    List<ScriptEngineFactory> found = byLanguage.get( key );
+    if ( found == null ) {
+      String lowerKey = lowerCase( key );
+      found = byLanguage.get( lowerKey );
+      if ( found == null ) {
+        found = byName.get( lowerKey );
+      }
+      if ( found == null ) {
+        found = byMimeType.get( lowerKey );
+      }
+      if ( found == null ) {
+        found = byExtension.get( lowerKey );
+      }
+    }
+    return found;
+  }
+
+  private ScriptEngine createEngine( List<ScriptEngineFactory> candidates ) {
+    if ( candidates != null ) {
+      for ( ScriptEngineFactory factory : candidates ) {
+        try {
+          ScriptEngine engine = factory.getScriptEngine();
+          if ( engine != null ) {
+            return engine;
+          }
+        } catch ( Exception e ) {
+          // Do nothing, try the next engine
+        }
+      }
+    }
+    return null;
+  }
+
+  private ScriptEngine createFallbackEngine() {
+    fallbacks.incrementAndGet();
+    return createEngine( byName.get( FALLBACK_ENGINE_NAME ) );
+  }
+
+  /**
+   * @return the THREADING parameter of the factory that would be used for the given language, or null if the engine is
+   *         not thread-safe or the language can't be found
+   */
+  public String getThreading( String languageName ) {
+    List<ScriptEngineFactory> found = findFactories( languageName );
+    if ( found == null || found.isEmpty() ) {
+      return null;
+    }
+    Object threading = found.get( 0 ).getParameter( "THREADING" );
+    return threading == null ? null : threading.toString();
+  }
+
+  /**
+   * Tells whether the engines of the given factory keep what a script defines (methods, classes, globals) in the engine
+   * itself rather than in its engine scope bindings. That's the case for Groovy (global closures bound to the script
+   * that defined them), JRuby and Jython (interpreter globals), so these engines can't be shared by step copies, and
+   * replacing their bindings doesn't clean them up.
+   *
+   * @param factory the engine factory, can be null
+   * @return true if the engines keep state of their own, or if the factory is unknown
+   */
+  public static boolean keepsEngineState( ScriptEngineFactory factory ) {
+    if ( factory == null ) {
+      return true;
+    }
+    String languageName = lowerCase( factory.getLanguageName() );
+    String engineName = lowerCase( factory.getEngineName() );
+    for ( String stateful : STATEFUL_ENGINES ) {
+      if ( ( languageName != null && languageName.contains( stateful ) )
+        || ( engineName != null && engineName.contains( stateful ) ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if the engine that would be used for the given language keeps state of its own, see
+   *         {@link #keepsEngineState(ScriptEngineFactory)}. Also true if the language can't be found, as the fallback
+   *         engine is Groovy.
+   */
+  public boolean keepsEngineState( String languageName ) {
+    List<ScriptEngineFactory> found = findFactories( languageName );
+    return found == null || found.isEmpty() || keepsEngineState( found.get( 0 ) );
+  }
+
+  public ScriptEngineManager getManager() {
+    return manager;
+  }
+
+  public List<ScriptEngineFactory> getFactories() {
+    return factories;
+  }
+
+  /**
+   * @return the language names of all the engine factories, in discovery order
+   */
+  public List<String> getLanguageNames() {
+    return languageNames;
+  }
+
+  /**
+   * @return a one-line summary of the time spent indexing and resolving engines, for logging
+   */
+  public String getStatistics() {
+    long count = resolutions.get();
+    return "factories=" + factories.size() + ", index=" + ( indexTime / 1000000L ) + "ms, resolutions=" + count
+      + ", avg=" + ( count == 0 ? 0 : resolutionTime.get() / count / 1000L ) + "us, fallbacks=" + fallbacks.get();
+  }
+
+  private static void index( ConcurrentMap<String, List<ScriptEngineFactory>> map, String key,
+                             ScriptEngineFactory factory ) {
+    if ( key == null ) {
+      return;
+    }
+    List<ScriptEngineFactory> list = map.get( key );
+    if ( list == null ) {
+      list = new ArrayList<ScriptEngineFactory>();
+      map.put( key, list );
+    }
+    if ( !list.contains( factory ) ) {
+      list.add( factory );
+    }
+  }
+
+  private static List<String> safe( List<String> list ) {
+    return list == null ? Collections.<String>emptyList() : list;
+  }
+
+  private static String lowerCase( String s ) {
+    return s == null ? null : s.toLowerCase();
+  }
+}
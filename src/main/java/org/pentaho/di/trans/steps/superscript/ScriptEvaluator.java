@@ -0,0 +1,709 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.i18n.BaseMessages;
+
+/**
+ * One script engine with its bindings, compiled transform script and output converters. The step uses one evaluator,
+ * or one per worker thread when rows are evaluated in parallel. An evaluator must only be used by one thread at a
+ * time.
+ *
+ * @author Matt Burgess
+ */
+public class ScriptEvaluator {
+  private static Class<?> PKG = SuperScriptMeta.class; // for i18n purposes, needed by Translator2!!
+
+  /**
+   * The legacy variable a script can set to one of the *_TRANSFORMATION constants
+   */
+  public static final String TRANS_STATUS = "trans_Status";
+
+  /**
+   * The names of the script API objects, an input field with one of these names isn't bound as a variable (see
+   * {@link RowBindings#putReserved(String, Object)})
+   */
+  public static final String[] RESERVED_NAMES = { "step", StatusControl.STATUS, RowEmitter.EMITTER,
+    OutputBuffer.OUTPUT, RowView.FIELDS, RowRouter.ROUTER, SuperScript.STREAM_ROWS, SuperScript.BATCH_RESULTS,
+    ScriptLibraries.LIBRARIES };
+
+  private final SuperScript step;
+  private final SuperScriptMeta meta;
+  private final SuperScriptData data;
+
+  private final ScriptEngine engine;
+  private final boolean sharedEngine;
+  private ScriptContext context;
+  private RowBindings bindings;
+  private Bindings engineScope;
+  private CompiledScript compiledScript;
+  private String rawScript;
+  private CompiledScript compiledStartScript;
+  private String rawStartScript;
+  private CompiledScript compiledEndScript;
+  private String rawEndScript;
+  private Compilable compiler;
+  private boolean bytecodeCache;
+  private ScriptLibraries libraries;
+  private boolean compiled;
+  private Invocable invocable;
+  private EngineProfile profile;
+  private EngineProfile.Strategy strategy;
+  private FieldConverter[] converters;
+  private OutputRowAllocator rowAllocator;
+  private RowEmitter emitter;
+  private RowRouter router;
+  private RowView rowView;
+  private OutputBuffer output;
+
+  private int inputSize;
+
+  private StatusControl status;
+  private boolean withTransStat = false;
+  private int transStatus = SuperScript.CONTINUE_TRANSFORMATION;
+
+  /**
+   * @param engine       the engine to evaluate the scripts with
+   * @param sharedEngine true if the engine is used by other evaluators at the same time, in which case the evaluator
+   *                     keeps its bindings in its own script context and leaves the engine's default context alone
+   */
+  public ScriptEvaluator( SuperScript step, SuperScriptMeta meta, SuperScriptData data, ScriptEngine engine,
+                          boolean sharedEngine ) {
+    this.step = step;
+    this.meta = meta;
+    this.data = data;
+    this.engine = engine;
+    this.sharedEngine = sharedEngine;
+  }
+
+  /**
+   * Compiles the start, transform and end scripts, if the engine supports it. The step does this in its init(), so the
+   * compilation is done before the first row comes in. The transform and end scripts are taken from the
+   * {@link CompiledScriptCache} when possible, and Groovy scripts from the {@link GroovyBytecodeCache} on disk if it's configured.
+   *
+   * @param startScript     the start script, can be empty
+   * @param transformScript the transform script
+   * @param endScript       the end script, can be empty
+   */
+  public void compile( String startScript, String transformScript, String endScript ) throws KettleException {
+    long start = System.currentTimeMillis();
+    rawStartScript = startScript;
+    rawScript = transformScript;
+    rawEndScript = endScript;
+    profile = EngineProfile.get( engine );
+    // In function mode the scripts define processRow() (and its helpers) in this engine, so they can't come from
+    // another engine
+    boolean cacheable = meta.getExecutionMode() != SuperScriptMeta.EXECUTION_MODE_FUNCTION;
+    compiler = getCompiler();
+    try {
+      // The start script can leave functions and variables in its own engine (a cached Groovy script registers its
+      // methods in the engine that compiled it), so it's always compiled by this engine
+      compiledStartScript = compileScript( startScript, false );
+      compiledScript = compileScript( transformScript, cacheable );
+      compiledEndScript = compileScript( endScript, cacheable );
+
+      // The library scripts, loaded in the script context later on. They define helpers for the other scripts, so
+      // like the start script they are compiled by this engine, never taken from the cache
+      libraries = new ScriptLibraries( this );
+      ScriptValuesScript[] scripts = meta.getScripts();
+      for ( int i = 0; i < scripts.length; i++ ) {
+        if ( scripts[i].getScriptType() == ScriptValuesScript.NORMAL_SCRIPT ) {
+          libraries.add( scripts[i].getScriptName(), scripts[i].getScript(),
+            compileScript( scripts[i].getScript(), false ) );
+        }
+      }
+    } catch ( ScriptException e ) {
+      throw new KettleValueException( BaseMessages.getString( PKG, "SuperScript.Log.CouldNotCompileScript" ), e );
+    }
+    compiled = true;
+    if ( step.getLogChannel().isDetailed() ) {
+      step.logDetailed( "Scripts (and " + libraries.getCompiledCount() + " libraries) compiled in "
+        + ( System.currentTimeMillis() - start ) + "ms"
+        + ( profile.isCompilable() ? ", compiled script cache: " + CompiledScriptCache.getStatistics()
+        : ", the engine can't compile scripts" )
+        + ( bytecodeCache ? ", bytecode cache: " + GroovyBytecodeCache.getStatistics() : "" ) );
+    }
+  }
+
+  /**
+   * @return the Groovy bytecode cache if the engine is Groovy and the cache directory is set, the engine otherwise (or
+   *         null if it can't compile scripts)
+   */
+  private Compilable getCompiler() {
+    bytecodeCache = false;
+    if ( !( engine instanceof Compilable ) ) {
+      return null;
+    }
+    String cacheDirectory = step.environmentSubstitute( step.getVariable( GroovyBytecodeCache.CACHE_DIR_VARIABLE ) );
+    if ( cacheDirectory != null && cacheDirectory.trim().length() > 0 ) {
+      try {
+        if ( GroovyBytecodeCache.isGroovyEngine( engine ) ) {
+          Compilable cache = new GroovyBytecodeCache( engine, new File( cacheDirectory.trim() ) );
+          bytecodeCache = true;
+          return cache;
+        }
+      } catch ( LinkageError e ) {
+        // Groovy is missing or doesn't have the compiler API the cache needs, let the engine compile
+        step.logDetailed( "Groovy bytecode cache not available: " + e );
+      } catch ( RuntimeException e ) {
+        // The class path of the engine can't be read, let the engine compile
+        step.logDetailed( "Groovy bytecode cache not available: " + e );
+      }
+    }
+    return (Compilable) engine;
+  }
+
+  /**
+   * @return the compiled script, or null if the script is empty or the engine can't compile scripts
+   */
+  private CompiledScript compileScript( String script, boolean cacheable ) throws ScriptException {
+    if ( script == null || script.length() == 0 || compiler == null ) {
+      return null;
+    }
+    // Scripts from the bytecode cache are bound to this engine, they are never shared
+    return cacheable && !bytecodeCache ? CompiledScriptCache.compile( engine, compiler, script ) : compiler
+      .compile( script );
+  }
+
+  /**
+   * Sets up the bindings and runs the start script. The scripts must have been compiled with
+   * {@link #compile(String, String, String)} before.
+   *
+   * @param rowMeta the input row metadata, not null
+   * @param row     the first row, can be null
+   */
+  public void init( RowMetaInterface rowMeta, Object[] row ) throws KettleException {
+    if ( !compiled ) {
+      throw new KettleStepException( "The scripts must be compiled before the evaluator is initialized" );
+    }
+    String startScript = rawStartScript;
+    String transformScript = rawScript;
+    inputSize = rowMeta.size();
+    rowAllocator = new OutputRowAllocator( data.outputRowMeta.size() );
+
+    // One converter per output field, resolved against the actual script results later on
+    //
+    converters = new FieldConverter[meta.getFieldname().length];
+    for ( int i = 0; i < meta.getFieldname().length; i++ ) {
+      converters[i] = new FieldConverter( meta.getFieldname()[i], meta.getType()[i] );
+    }
+
+    // The row-backed bindings resolve the used fields to row slots once, here on the first row
+    // In batch mode the script works on whole rows, not on the fields of a single row
+    //
+    bindings = new RowBindings();
+    bindings.setRowMeta( rowMeta,
+      meta.getExecutionMode() == SuperScriptMeta.EXECUTION_MODE_BATCH ? null : data.fields_used );
+    // Engines that keep the script variables somewhere else when given foreign bindings (like Nashorn) get their own
+    // bindings, with the row-backed ones as a front for them
+    engineScope = bindings;
+    if ( !profile.supportsForeignBindings() ) {
+      engineScope = engine.createBindings();
+      bindings.setTarget( engineScope );
+    }
+    if ( sharedEngine ) {
+      context = new SimpleScriptContext();
+      context.setBindings( engineScope, ScriptContext.ENGINE_SCOPE );
+      context.setBindings( engine.getBindings( ScriptContext.GLOBAL_SCOPE ), ScriptContext.GLOBAL_SCOPE );
+    } else {
+      engine.setBindings( engineScope, ScriptContext.ENGINE_SCOPE );
+      context = engine.getContext();
+      if ( context == null ) {
+        context = new SimpleScriptContext();
+        context.setBindings( engineScope, ScriptContext.ENGINE_SCOPE );
+      }
+    }
+
+    // Everything that doesn't change from row to row is bound once, into the step scope of the bindings
+    //
+    bindings.putReserved( "step", step );
+    status = new StatusControl( step );
+    bindings.putReserved( StatusControl.STATUS, status );
+    if ( meta.getExecutionMode() != SuperScriptMeta.EXECUTION_MODE_BATCH ) {
+      emitter = new RowEmitter( this );
+      bindings.putReserved( RowEmitter.EMITTER, emitter );
+      output = new OutputBuffer( meta.getFieldname(), meta.getType() );
+      bindings.putReserved( OutputBuffer.OUTPUT, output );
+      rowView = new RowView( rowMeta, output, bindings );
+      bindings.putReserved( RowView.FIELDS, rowView );
+      if ( meta.getTargetName().length > 0 ) {
+        router = new RowRouter( meta.getTargetName() );
+        bindings.putReserved( RowRouter.ROUTER, router );
+      }
+    } else {
+      // The step refills the same lists for every batch
+      bindings.putReserved( SuperScript.BATCH_ROWS, data.batch );
+      bindings.putReserved( SuperScript.BATCH_RESULTS, data.batchResults );
+    }
+
+    // Adding the existing Scripts to the Context
+    //
+    ScriptValuesScript[] scripts = meta.getScripts();
+    for ( int i = 0; i < scripts.length; i++ ) {
+      bindings.putStepScope( scripts[i].getScriptName(), scripts[i].getScript() );
+    }
+    bindings.putReserved( ScriptLibraries.LIBRARIES, libraries );
+    warnHiddenFields( rowMeta );
+
+    // Adding the Name of the Transformation to the Context
+    //
+    bindings.putStepScope( "stepName", step.getStepname() );
+    bindings.putStepScope( "transName", step.getTrans().getName() );
+
+    try {
+      // Make the first row (and its used fields) available to the start script
+      //
+      bindings.setRow( row, null, 0 );
+      if ( rowView != null ) {
+        rowView.setRow( row );
+      }
+
+      // Modification for Additional SuperScript parsing
+      //
+      try {
+        if ( meta.getAddClasses() != null ) {
+          for ( int i = 0; i < meta.getAddClasses().length; i++ ) {
+            bindings.putStepScope( meta.getAddClasses()[i].getScriptName(), meta.getAddClasses()[i].getAddObject() );
+          }
+        }
+      } catch ( Exception e ) {
+        throw new KettleValueException( BaseMessages.getString( PKG,
+          "SuperScript.Log.CouldNotAttachAdditionalScripts" ), e );
+      }
+
+      // Adding some Constants to the compiledScript
+      try {
+
+        bindings.putStepScope( "SKIP_TRANSFORMATION", Integer.valueOf( SuperScript.SKIP_TRANSFORMATION ) );
+        bindings.putStepScope( "ABORT_TRANSFORMATION", Integer.valueOf( SuperScript.ABORT_TRANSFORMATION ) );
+        bindings.putStepScope( "ERROR_TRANSFORMATION", Integer.valueOf( SuperScript.ERROR_TRANSFORMATION ) );
+        bindings.putStepScope( "CONTINUE_TRANSFORMATION", Integer.valueOf( SuperScript.CONTINUE_TRANSFORMATION ) );
+
+      } catch ( Exception ex ) {
+        throw new KettleValueException(
+          BaseMessages.getString( PKG, "SuperScript.Log.CouldNotAddDefaultConstants" ), ex );
+      }
+
+      // Load the compiled libraries first, so the start script can use them too
+      if ( meta.isLoadLibraries() ) {
+        try {
+          libraries.loadAll();
+        } catch ( Exception e ) {
+          throw new KettleValueException( BaseMessages.getString( PKG, "SuperScript.Log.ErrorLoadingLibraries" ), e );
+        }
+      }
+
+      try {
+        // Checking for StartScript
+        if ( startScript != null && startScript.length() > 0 ) {
+          if ( step.getLogChannel().isDetailed() ) {
+            step.logDetailed( ( "Start compiledScript found!" ) );
+          }
+          evalScript( compiledStartScript, startScript );
+
+        } else {
+          if ( step.getLogChannel().isDetailed() ) {
+            step.logDetailed( ( "No starting compiledScript found!" ) );
+          }
+        }
+      } catch ( Exception es ) {
+        throw new KettleValueException(
+          BaseMessages.getString( PKG, "SuperScript.Log.ErrorProcessingStartScript" ), es );
+
+      }
+
+      // The legacy trans_Status variable is only looked up after each row if one of the scripts refers to it
+      withTransStat = refersTo( startScript, TRANS_STATUS ) || refersTo( transformScript, TRANS_STATUS );
+      if ( step.getLogChannel().isDetailed() ) {
+        step.logDetailed( withTransStat
+          ? "trans_Status found. Checking transformation status while compiledScript execution."
+          : "No trans_Status found, the status can be set with " + StatusControl.STATUS + ".skip() and the like." );
+      }
+
+      strategy = profile.getStrategy( false );
+      if ( meta.getExecutionMode() == SuperScriptMeta.EXECUTION_MODE_FUNCTION ) {
+        initFunctionMode();
+      }
+      if ( step.getLogChannel().isDetailed() ) {
+        step.logDetailed( "Script engine " + profile + ", evaluating with strategy " + strategy );
+      }
+    } catch ( Exception e ) {
+      throw new KettleValueException( BaseMessages.getString( PKG, "SuperScript.Log.CouldNotCompileScript" ), e );
+    }
+  }
+
+  /**
+   * Evaluates the top level of the transform script once, so it can define the processRow function that is then
+   * invoked for every row.
+   */
+  private void initFunctionMode() throws ScriptException, KettleStepException {
+    if ( !profile.isInvocable() ) {
+      throw new KettleStepException( BaseMessages.getString( PKG, "SuperScript.Exception.EngineNotInvocable",
+        meta.getLanguageName() ) );
+    }
+    eval();
+    invocable = (Invocable) engine;
+    strategy = profile.getStrategy( true );
+    if ( step.getLogChannel().isDetailed() ) {
+      step.logDetailed( "Invoking function " + SuperScriptMeta.PROCESS_ROW_FUNCTION + "() for every row" );
+    }
+  }
+
+  public Object eval() throws ScriptException {
+    switch ( strategy ) {
+      case INVOKE_FUNCTION:
+        try {
+          return invocable.invokeFunction( SuperScriptMeta.PROCESS_ROW_FUNCTION, bindings.getRow(),
+            bindings.getRowMeta() );
+        } catch ( NoSuchMethodException nsme ) {
+          throw new ScriptException( nsme );
+        }
+
+      case COMPILED_CONTEXT:
+        try {
+          return compiledScript.eval( context );
+        } catch ( UnsupportedOperationException uoe ) {
+          // The probe couldn't tell, this engine doesn't support eval with script context after all
+          strategy = EngineProfile.Strategy.COMPILED_BINDINGS;
+          return compiledScript.eval( engineScope );
+        }
+
+      case COMPILED_BINDINGS:
+        return compiledScript.eval( engineScope );
+
+      case INTERPRETED_CONTEXT:
+        try {
+          return engine.eval( rawScript, context );
+        } catch ( UnsupportedOperationException uoe ) {
+          strategy = EngineProfile.Strategy.INTERPRETED_BINDINGS;
+          return engine.eval( rawScript, engineScope );
+        }
+
+      case INTERPRETED_BINDINGS:
+        return engine.eval( rawScript, engineScope );
+
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Evaluates the transform script for one row and builds the output row.
+   *
+   * @return the output row, or null if the script set a trans_Status other than CONTINUE_TRANSFORMATION (see
+   * {@link #getTransStatus()}) or emitted its own rows (see {@link #getEmittedRows()})
+   */
+  public Object[] processRow( Object[] row, Object[] lastRow, int rowNumber ) throws KettleValueException {
+    // Point the bindings at the current row, the used fields are read straight from it
+    //
+    setCurrentRow( row, lastRow, rowNumber );
+    status.reset();
+
+    try {
+      Object scriptResult;
+      try {
+        scriptResult = eval();
+      } catch ( IllegalStateException e ) {
+        // A used field could not be converted while the script was reading it
+        throw new KettleValueException( BaseMessages.getString( PKG, "SuperScript.Log.UnexpectedError" ), e );
+      }
+
+      transStatus = readTransStatus();
+      if ( transStatus != SuperScript.CONTINUE_TRANSFORMATION || emitter.getCount() > 0 ) {
+        return null;
+      }
+
+      return buildOutputRow( row, scriptResult, null, false );
+    } catch ( ScriptException e ) {
+      throw new KettleValueException( BaseMessages.getString( PKG, "SuperScript.Log.SuperScriptError" ), e );
+    }
+  }
+
+  /**
+   * Points the field variables, the row view, the output buffer, the emitter and the router at the given row.
+   */
+  void setCurrentRow( Object[] row, Object[] lastRow, int rowNumber ) {
+    bindings.setRow( row, lastRow, rowNumber );
+    rowView.setRow( row );
+    output.reset();
+    emitter.reset( row );
+    if ( router != null ) {
+      router.clear();
+    }
+  }
+
+  /**
+   * Evaluates the transform script once, for the whole stream of rows (see {@link SuperScript#STREAM_ROWS}).
+   *
+   * @param rows the iterator over the incoming rows
+   * @return the result of the script evaluation
+   */
+  public Object processStream( RowIterator rows ) throws KettleValueException {
+    bindings.putReserved( SuperScript.STREAM_ROWS, rows );
+    try {
+      Object scriptResult;
+      try {
+        scriptResult = eval();
+      } catch ( IllegalStateException e ) {
+        // A row could not be read, converted or written while the script was iterating
+        throw new KettleValueException( BaseMessages.getString( PKG, "SuperScript.Log.UnexpectedError" ), e );
+      }
+      transStatus = readTransStatus();
+      return scriptResult;
+    } catch ( ScriptException e ) {
+      throw new KettleValueException( BaseMessages.getString( PKG, "SuperScript.Log.SuperScriptError" ), e );
+    }
+  }
+
+  /**
+   * Builds an output row from an input row.
+   *
+   * @param row          the input row, can be null
+   * @param scriptResult the result of the script evaluation, for the fields marked as script result
+   * @param values       the values of the output fields in the order of the fields grid, null to take the current
+   *                     values of the output field variables
+   * @param copy         true to always copy the input row, false to widen it in place when possible
+   */
+  Object[] buildOutputRow( Object[] row, Object scriptResult, Object[] values, boolean copy )
+    throws KettleValueException {
+    Object[] outputRow;
+    if ( copy ) {
+      outputRow = rowAllocator.allocate();
+      if ( row != null ) {
+        System.arraycopy( row, 0, outputRow, 0, inputSize );
+      }
+    } else {
+      outputRow = rowAllocator.widen( row );
+    }
+
+    // Filling the defined TranVars with the Values from the Row
+    // Keep an index...
+    int outputIndex = inputSize;
+    for ( int i = 0; i < converters.length; i++ ) {
+      Object valueData;
+      if ( values != null ) {
+        valueData = getValue( i < values.length ? values[i] : null, i );
+      } else if ( output != null && output.isSet( i ) ) {
+        // Written straight to the output buffer, only converted if it isn't of the field's type already
+        Object result = output.get( i );
+        valueData = output.isNative( i, result ) ? result : getValue( result, i );
+      } else {
+        valueData = getValue( meta.getScriptResult()[i] ? scriptResult : bindings.get( meta.getFieldname()[i] ), i );
+      }
+      if ( data.replaceIndex[i] < 0 ) {
+        outputRow[outputIndex++] = valueData;
+      } else {
+        outputRow[data.replaceIndex[i]] = valueData;
+      }
+    }
+    return outputRow;
+  }
+
+  /**
+   * @return the rows the script emitted for the last row, see {@link RowEmitter}
+   */
+  public List<Object[]> getEmittedRows() {
+    return emitter == null ? Collections.<Object[]>emptyList() : emitter.getRows();
+  }
+
+  /**
+   * @return the indexes of the target streams the script routed the last row to, or null if it didn't route it (see
+   *         {@link RowRouter} for where such a row goes)
+   */
+  public int[] getRoutes() {
+    return router == null ? null : router.getRoutes();
+  }
+
+  /**
+   * Evaluates the transform script once, for a whole batch of rows (see {@link SuperScript#BATCH_ROWS}).
+   *
+   * @return the result of the script evaluation
+   */
+  public Object processBatch( Object[] lastRow, int rowNumber ) throws KettleValueException {
+    bindings.setRow( null, lastRow, rowNumber );
+    status.reset();
+    try {
+      Object scriptResult;
+      try {
+        scriptResult = eval();
+      } catch ( IllegalStateException e ) {
+        throw new KettleValueException( BaseMessages.getString( PKG, "SuperScript.Log.UnexpectedError" ), e );
+      }
+      transStatus = readTransStatus();
+      return scriptResult;
+    } catch ( ScriptException e ) {
+      throw new KettleValueException( BaseMessages.getString( PKG, "SuperScript.Log.SuperScriptError" ), e );
+    }
+  }
+
+  /**
+   * @return the status the script set during the last evaluation (with {@link StatusControl} or trans_Status),
+   *         CONTINUE_TRANSFORMATION if it didn't set one
+   */
+  public int getTransStatus() {
+    return transStatus;
+  }
+
+  /**
+   * Logs the input fields that have the name of a script API object, the script can only read them through the row
+   * view (or the row) then.
+   */
+  private void warnHiddenFields( RowMetaInterface rowMeta ) {
+    if ( meta.getExecutionMode() == SuperScriptMeta.EXECUTION_MODE_BATCH ) {
+      // No field is bound as a variable in batch mode
+      return;
+    }
+    for ( String name : RESERVED_NAMES ) {
+      boolean bound = bindings.isReserved( name ) || ( name.equals( SuperScript.STREAM_ROWS )
+        && meta.getExecutionMode() == SuperScriptMeta.EXECUTION_MODE_STREAM );
+      if ( bound && rowMeta.indexOfValue( name ) >= 0 && refersTo( rawScript, name ) ) {
+        step.logBasic( BaseMessages.getString( PKG, "SuperScript.Log.FieldHiddenByScriptApi", name ) );
+      }
+    }
+  }
+
+  /**
+   * @return the status the script has set so far in the current evaluation, for stream mode where the script runs over
+   *         all the rows in one evaluation
+   */
+  public int getCurrentTransStatus() {
+    return readTransStatus();
+  }
+
+  private int readTransStatus() {
+    if ( status.isSet() ) {
+      return status.get();
+    }
+    if ( withTransStat ) {
+      Object tran_stat = bindings.get( TRANS_STATUS );
+      if ( tran_stat instanceof Number ) {
+        return ( (Number) tran_stat ).intValue();
+      }
+    }
+    return SuperScript.CONTINUE_TRANSFORMATION;
+  }
+
+  /**
+   * @return true if the given script refers to the given name, as far as the language's script analyzer can tell
+   */
+  private boolean refersTo( String script, String name ) {
+    if ( script == null || script.indexOf( name ) < 0 ) {
+      return false;
+    }
+    ScriptAnalyzer analyzer = ScriptAnalyzers.forLanguage( meta.getLanguageName() );
+    return analyzer == null || analyzer.getReferencedNames( script ).contains( name );
+  }
+
+  /**
+   * Converts a script result to the type of output field i.
+   */
+  public Object getValue( Object result, int i ) throws KettleValueException {
+    if ( meta.getFieldname()[i] != null && meta.getFieldname()[i].length() > 0 ) {
+      try {
+        return converters[i].convert( result );
+      } catch ( Exception e ) {
+        throw new KettleValueException( BaseMessages.getString( PKG, "SuperScript.Log.ScriptError" ), e );
+      }
+    } else {
+      throw new KettleValueException( "No name was specified for result value #" + ( i + 1 ) );
+    }
+  }
+
+  /**
+   * Runs a script against the bindings of this evaluator.
+   */
+  public Object evalScript( String script ) throws ScriptException {
+    return evalScript( null, script );
+  }
+
+  /**
+   * Runs the end script, if there is one.
+   */
+  public Object evalEndScript() throws ScriptException {
+    if ( rawEndScript == null || rawEndScript.length() == 0 ) {
+      return null;
+    }
+    return evalScript( compiledEndScript, rawEndScript );
+  }
+
+  /**
+   * Runs a start, end or library script, compiled if possible, against the script context of this evaluator if the engine
+   * supports it.
+   */
+  Object evalScript( CompiledScript compiledScript, String script ) throws ScriptException {
+    if ( profile.supportsContextEval() ) {
+      try {
+        return compiledScript != null ? compiledScript.eval( context ) : engine.eval( script, context );
+      } catch ( UnsupportedOperationException uoe ) {
+        // Fall back to evaluating against the bindings
+      }
+    }
+    return compiledScript != null ? compiledScript.eval( engineScope ) : engine.eval( script, engineScope );
+  }
+
+  /**
+   * @return true once {@link #init(RowMetaInterface, Object[])} has set up the bindings
+   */
+  public boolean isInitialized() {
+    return bindings != null;
+  }
+
+  public StatusControl getStatusControl() {
+    return status;
+  }
+
+  public OutputRowAllocator getRowAllocator() {
+    return rowAllocator;
+  }
+
+  public EngineProfile getProfile() {
+    return profile;
+  }
+
+  public EngineProfile.Strategy getStrategy() {
+    return strategy;
+  }
+
+  public ScriptEngine getEngine() {
+    return engine;
+  }
+
+  public RowBindings getBindings() {
+    return bindings;
+  }
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptException;
+
+/**
+ * The library scripts of the step (the script tabs that are neither the transform, start nor end script), compiled
+ * once when the step is initialized. Loading a library evaluates its compiled form in the script context of the
+ * evaluator, so the functions, closures and classes it defines can be used by the other scripts without parsing the
+ * library source again. It is bound to the script as "libraries" (see {@link #LIBRARIES}):
+ * <ul>
+ * <li>libraries.load("name") loads the library with the given name, once: loading it again does nothing</li>
+ * <li>libraries.loadAll() loads all the libraries, in the order of the script tabs</li>
+ * </ul>
+ * With the "load libraries" option of the step, all libraries are loaded before the start script runs. The library
+ * sources are still bound under their names, for scripts that evaluate them on their own.
+ *
+ * @author Matt Burgess
+ */
+public class ScriptLibraries {
+
+  /**
+   * The name the libraries are bound to
+   */
+  public static final String LIBRARIES = "libraries";
+
+  private final ScriptEvaluator evaluator;
+  private final Map<String, String> sources = new LinkedHashMap<String, String>();
+  private final Map<String, CompiledScript> compiledScripts = new LinkedHashMap<String, CompiledScript>();
+  private final Set<String> loaded = new HashSet<String>();
+
+  public ScriptLibraries( ScriptEvaluator evaluator ) {
+    this.evaluator = evaluator;
+  }
+
+  /**
+   * Adds a library.
+   *
+   * @param name           the name of the script tab
+   * @param source         the source of the library
+   * @param compiledScript the compiled library, null if the engine can't compile scripts
+   */
+  void add( String name, String source, CompiledScript compiledScript ) {
+    sources.put( name, source );
+    compiledScripts.put( name, compiledScript );
+  }
+
+  /**
+   * Loads the given library, unless it was loaded before.
+   *
+   * @return true if the library was loaded now, false if it was loaded before
+   * @throws ScriptException if there's no such library, or the library fails
+   */
+  public boolean load( String name ) throws ScriptException {
+    if ( loaded.contains( name ) ) {
+      return false;
+    }
+    if ( !sources.containsKey( name ) ) {
+      throw new ScriptException( "Unknown library script [" + name + "]" );
+    }
+    evaluator.evalScript( compiledScripts.get( name ), sources.get( name ) );
+    loaded.add( name );
+    return true;
+  }
+
+  /**
+   * Loads all the libraries that weren't loaded yet, in the order of the script tabs.
+   */
+  public void loadAll() throws ScriptException {
+    for ( String name : sources.keySet() ) {
+      load( name );
+    }
+  }
+
+  public boolean isLoaded( String name ) {
+    return loaded.contains( name );
+  }
+
+  /**
+   * @return the names of the libraries, in the order of the script tabs
+   */
+  public Set<String> getNames() {
+    return Collections.unmodifiableSet( sources.keySet() );
+  }
+
+  /**
+   * @return the number of libraries the engine could compile
+   */
+  public int getCompiledCount() {
+    int count = 0;
+    for ( CompiledScript compiledScript : compiledScripts.values() ) {
+      if ( compiledScript != null ) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
@@ -1,21 +1,39 @@
 package org.pentaho.di.trans.steps.superscript;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.script.ScriptEngine;
-import javax.script.ScriptEngineFactory;
 import javax.script.ScriptEngineManager;
 
 public class ScriptUtils {
 
-  private static ScriptEngineManager scriptEngineManager;
+  /**
+   * Set this variable to Y to let step copies share one engine, for thread-safe engines that don't keep state of their
+   * own. Off by default.
+   */
+  public static final String SHARE_ENGINES_VARIABLE = "SUPERSCRIPT_SHARE_ENGINES";
 
-  private static final Map<String, List<ScriptEngineFactory>> languageFactoryMap
-    = new HashMap<String, List<ScriptEngineFactory>>();
-  private static List<ScriptEngineFactory> engineFactories = null;
+  private static final ScriptEnginePool enginePool = ScriptEnginePool.fromSystemProperties();
+
+  private static final ConcurrentMap<String, ScriptEngine> sharedEngines =
+    new ConcurrentHashMap<String, ScriptEngine>();
+
+  /**
+   * Holds the registry, so the engine factories are discovered once, on first use, and safely when several step copies
+   * initialize at the same time
+   */
+  private static class RegistryHolder {
+    static final ScriptEngineRegistry REGISTRY = createRegistry();
+
+    private static ScriptEngineRegistry createRegistry() {
+      System.setProperty( "org.jruby.embed.localvariable.behavior", "persistent" );// required for JRuby, transparent
+      // for others
+      return new ScriptEngineRegistry( ScriptUtils.class.getClassLoader() );
+    }
+  }
 
   /**
    * Instantiates the right scripting language interpreter, falling back to Groovy for backward compatibility
@@ -24,74 +42,100 @@ public class ScriptUtils {
    * @return the desired ScriptEngine, or null if none can be found
    */
   public static ScriptEngine createNewScriptEngine( String engineName ) {
-
-    ScriptEngine scriptEngine = getScriptEngineManager().getEngineByName( engineName );
-    if ( scriptEngine == null ) {
-      // falls back to Groovy
-      scriptEngine = getScriptEngineManager().getEngineByName( "groovy" );
-    }
-    return scriptEngine;
+    return getScriptEngineRegistry().createEngineByName( engineName );
   }
 
+  /**
+   * Instantiates the interpreter for the given language (or engine name, MIME type, file extension), falling back to
+   * Groovy for backward compatibility
+   *
+   * @param languageName
+   * @return the desired ScriptEngine, or null if none can be found
+   */
   public static ScriptEngine createNewScriptEngineByLanguage( String languageName ) {
+    return getScriptEngineRegistry().createEngineByLanguage( languageName );
+  }
 
-    // Defaults to Groovy
-    ScriptEngine scriptEngine = getScriptEngineManager().getEngineByName( "groovy" );
-    if ( engineFactories == null ) {
-      populateEngineFactoryMap();
-    }
-    List<ScriptEngineFactory> factories = languageFactoryMap.get( languageName );
-    if ( factories != null ) {
-      for ( ScriptEngineFactory factory : factories ) {
-        try {
-          scriptEngine = factory.getScriptEngine();
-
-          if ( scriptEngine != null ) {
-            break;
-          }
-        } catch ( Exception e ) {
-          // Do nothing, try the next engine
-        }
-      }
-    }
-    return scriptEngine;
+  /**
+   * Checks out an engine for the given language from the engine pool, creating one if there is no idle engine. The
+   * engine must be given back with {@link #returnScriptEngine(String, ScriptEngine)} once the caller is done with it.
+   *
+   * @param languageName
+   * @return the desired ScriptEngine, or null if none can be found
+   */
+  public static ScriptEngine checkoutScriptEngine( String languageName ) {
+    return enginePool.checkout( languageName );
   }
 
-  public static ScriptEngineManager getScriptEngineManager() {
-    if ( scriptEngineManager == null ) {
-      System.setProperty( "org.jruby.embed.localvariable.behavior", "persistent" );// required for JRuby, transparent
-      // for others
-      scriptEngineManager = new ScriptEngineManager( ScriptUtils.class.getClassLoader() );
-      populateEngineFactoryMap();
-    }
-    return scriptEngineManager;
+  /**
+   * Gives an engine checked out with {@link #checkoutScriptEngine(String)} back to the engine pool.
+   *
+   * @param languageName
+   * @param engine
+   */
+  public static void returnScriptEngine( String languageName, ScriptEngine engine ) {
+    enginePool.checkin( languageName, engine );
   }
 
-  public static List<String> getScriptLanguageNames() {
-    List<String> scriptEngineNames = new ArrayList<String>();
-    engineFactories = getScriptEngineManager().getEngineFactories();
-    if ( engineFactories != null ) {
-      for ( ScriptEngineFactory factory : engineFactories ) {
-        final String engineName = factory.getLanguageName();
-        scriptEngineNames.add( engineName );
-      }
+  /**
+   * Tells whether the engine for the given language can be used by several threads at the same time, each one with its
+   * own script context. Sharing must be turned on with the SUPERSCRIPT_SHARE_ENGINES variable, and then it's only done
+   * when the factory advertises a THREADING parameter of MULTITHREADED or STATELESS (THREAD-ISOLATED engines keep state
+   * per thread) and the engine doesn't keep script definitions of its own. A Groovy engine for example stores the
+   * methods a script defines as engine-wide closures bound to that script's context, so a helper defined by one step
+   * copy would work on another copy's row.
+   *
+   * @param languageName
+   * @return true if one engine can be shared by all step copies
+   */
+  public static boolean canShareScriptEngine( String languageName ) {
+    if ( !"Y".equalsIgnoreCase( System.getProperty( SHARE_ENGINES_VARIABLE ) ) ) {
+      return false;
+    }
+    ScriptEngineRegistry registry = getScriptEngineRegistry();
+    if ( registry.keepsEngineState( languageName ) ) {
+      return false;
     }
-    return scriptEngineNames;
+    String threading = registry.getThreading( languageName );
+    return "MULTITHREADED".equals( threading ) || "STATELESS".equals( threading );
   }
 
-  private static void populateEngineFactoryMap() {
-    engineFactories = getScriptEngineManager().getEngineFactories();
-    if ( engineFactories != null ) {
-      for ( ScriptEngineFactory factory : engineFactories ) {
-        final String languageName = factory.getLanguageName();
-        List<ScriptEngineFactory> languageFactories = languageFactoryMap.get( languageName );
-        if ( languageFactories == null ) {
-          languageFactories = new ArrayList<ScriptEngineFactory>();
-          languageFactoryMap.put( languageName, languageFactories );
+  /**
+   * Returns the engine shared by all step copies for the given language, creating it on first use. Only use it for
+   * languages where {@link #canShareScriptEngine(String)} is true, never change its default context and never return it
+   * to the engine pool.
+   *
+   * @param languageName
+   * @return the shared ScriptEngine, or null if none can be found
+   */
+  public static ScriptEngine getSharedScriptEngine( String languageName ) {
+    ScriptEngine engine = sharedEngines.get( languageName );
+    if ( engine == null ) {
+      engine = createNewScriptEngineByLanguage( languageName );
+      if ( engine != null ) {
+        ScriptEngine existing = sharedEngines.putIfAbsent( languageName, engine );
+        if ( existing != null ) {
+          engine = existing;
         }
-        languageFactories.add( factory );
       }
     }
+    return engine;
+  }
+
+  public static ScriptEnginePool getEnginePool() {
+    return enginePool;
+  }
+
+  public static ScriptEngineRegistry getScriptEngineRegistry() {
+    return RegistryHolder.REGISTRY;
+  }
+
+  public static ScriptEngineManager getScriptEngineManager() {
+    return getScriptEngineRegistry().getManager();
+  }
+
+  public static List<String> getScriptLanguageNames() {
+    return new ArrayList<String>( getScriptEngineRegistry().getLanguageNames() );
   }
 
 }
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+/**
+ * Lets a script tell the step what to do with the current row, without setting the trans_Status variable. It is bound
+ * to the script as "status" (see {@link #STATUS}):
+ * <ul>
+ * <li>status.skip() drops the current row (SKIP_TRANSFORMATION)</li>
+ * <li>status.abort() stops the transformation after the current row (ABORT_TRANSFORMATION)</li>
+ * <li>status.error() or status.error("message") stops the transformation with an error (ERROR_TRANSFORMATION)</li>
+ * </ul>
+ * The status goes back to CONTINUE_TRANSFORMATION for every row. It takes precedence over trans_Status, which is
+ * still read for scripts that refer to it.
+ *
+ * @author Matt Burgess
+ */
+public class StatusControl {
+
+  /**
+   * The name the status control is bound to
+   */
+  public static final String STATUS = "status";
+
+  private final SuperScript step;
+  private int status = SuperScript.CONTINUE_TRANSFORMATION;
+
+  public StatusControl( SuperScript step ) {
+    this.step = step;
+  }
+
+  public void skip() {
+    status = SuperScript.SKIP_TRANSFORMATION;
+  }
+
+  public void abort() {
+    status = SuperScript.ABORT_TRANSFORMATION;
+  }
+
+  public void error() {
+    status = SuperScript.ERROR_TRANSFORMATION;
+  }
+
+  /**
+   * Stops the transformation with an error, logging the given message.
+   */
+  public void error( String message ) {
+    step.logError( message );
+    status = SuperScript.ERROR_TRANSFORMATION;
+  }
+
+  /**
+   * @return the status set by the script for the current row, CONTINUE_TRANSFORMATION if it didn't set one
+   */
+  public int get() {
+    return status;
+  }
+
+  /**
+   * @return true if the script set a status other than CONTINUE_TRANSFORMATION for the current row
+   */
+  public boolean isSet() {
+    return status != SuperScript.CONTINUE_TRANSFORMATION;
+  }
+
+  void reset() {
+    status = SuperScript.CONTINUE_TRANSFORMATION;
+  }
+}
@@ -20,18 +20,21 @@
 
 package org.pentaho.di.trans.steps.superscript;
 
-import java.math.BigDecimal;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 
 import javax.script.*;
 
 import org.pentaho.di.compatibility.Value;
 import org.pentaho.di.core.Const;
+import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.exception.KettleValueException;
 import org.pentaho.di.core.row.*;
-import org.pentaho.di.core.xml.XMLHandler;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransMeta;
@@ -62,13 +65,27 @@ public class SuperScript extends BaseStep implements StepInterface {
 
   public final static int CONTINUE_TRANSFORMATION = 0;
 
-  private boolean bWithTransStat = false;
+  /**
+   * Batch mode: the list of rows handed to the script
+   */
+  public static final String BATCH_ROWS = "rows";
+
+  /**
+   * Batch mode: the list the script fills with the output values for each row (an array or list of values, or null to
+   * drop the row)
+   */
+  public static final String BATCH_RESULTS = "results";
+
+  /**
+   * Stream mode: the iterator over all the incoming rows handed to the script, see {@link RowIterator}
+   */
+  public static final String STREAM_ROWS = "rows";
 
   private boolean bRC = false;
 
   private int iTranStat = CONTINUE_TRANSFORMATION;
 
-  private boolean bFirstRun = false;
+  private Object[] streamRow; // stream mode: the row the script is on
 
   private int rownr = 0;
 
@@ -80,8 +97,6 @@ public class SuperScript extends BaseStep implements StepInterface {
 
   private String strEndScript = "";
 
-  Bindings bindings;
-
   private Object[] lastRow = null;
 
   public SuperScript( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr, TransMeta transMeta,
@@ -89,593 +104,726 @@ public class SuperScript extends BaseStep implements StepInterface {
     super( stepMeta, stepDataInterface, copyNr, transMeta, trans );
   }
 
-  private void determineUsedFields( RowMetaInterface row ) {
-    if ( row == null ) {
-      return;
+  private boolean isFieldReferenced( String valname, Set<String> referencedNames ) {
+    if ( referencedNames == null || !isIdentifier( valname ) ) {
+      // A name like "order date" can't be an identifier, so it could only be looked up in ways we can't see
+      return strTransformScript.indexOf( valname ) >= 0;
     }
+    return referencedNames.contains( valname );
+  }
 
-    int nr = 0;
-    // Count the occurrences of the values.
-    // Perhaps we find values in comments, but we take no risk!
-    //
-    for ( int i = 0; i < row.size(); i++ ) {
-      String valname = row.getValueMeta( i ).getName().toUpperCase();
-      if ( strTransformScript.toUpperCase().indexOf( valname ) >= 0 ) {
-        nr++;
+  private static boolean isIdentifier( String name ) {
+    if ( Const.isEmpty( name ) || !Character.isJavaIdentifierStart( name.charAt( 0 ) ) ) {
+      return false;
+    }
+    for ( int i = 1; i < name.length(); i++ ) {
+      if ( !Character.isJavaIdentifierPart( name.charAt( i ) ) ) {
+        return false;
       }
     }
+    return true;
+  }
 
-    // Allocate fields_used
-    data.fields_used = new int[nr];
-    data.values_used = new Value[nr];
+  private void determineUsedFields( RowMetaInterface row ) {
+    if ( row == null ) {
+      return;
+    }
 
-    nr = 0;
-    // Count the occurrences of the values.
-    // Perhaps we find values in comments, but we take no risk!
+    // Find the names the script refers to, outside of comments. Without an analyzer for the language, fall back to
+    // finding the field names anywhere in the script.
     //
+    ScriptAnalyzer analyzer = ScriptAnalyzers.forLanguage( meta.getLanguageName() );
+    Set<String> referencedNames = analyzer == null ? null : analyzer.getReferencedNames( strTransformScript );
+
+    int[] used = new int[row.size()];
+    int nr = 0;
     for ( int i = 0; i < row.size(); i++ ) {
-      // Values are case-insensitive in JavaScript.
-      //
       String valname = row.getValueMeta( i ).getName();
-      if ( strTransformScript.indexOf( valname ) >= 0 ) {
+      if ( isFieldReferenced( valname, referencedNames ) ) {
         if ( log.isDetailed() ) {
           logDetailed( BaseMessages.getString( PKG, "SuperScript.Log.UsedValueName", String.valueOf( i ), valname ) ); //$NON-NLS-3$
         }
-        data.fields_used[nr] = i;
+        used[nr] = i;
         nr++;
       }
     }
 
+    data.fields_used = new int[nr];
+    System.arraycopy( used, 0, data.fields_used, 0, nr );
+    data.values_used = new Value[nr];
+
     if ( log.isDetailed() ) {
       logDetailed( BaseMessages.getString( PKG, "SuperScript.Log.UsingValuesFromInputStream", String
         .valueOf( data.fields_used.length ) ) );
     }
   }
 
-  private boolean addValues( RowMetaInterface rowMeta, Object[] row ) throws KettleException {
-    if ( first ) {
-      first = false;
+  /**
+   * Sets up the output row layout, the bindings and the compiled scripts. Called once, with the first row.
+   */
+  private void initScript( RowMetaInterface rowMeta, Object[] row ) throws KettleException {
+    first = false;
 
-      if ( rowMeta == null ) {
-        rowMeta = new RowMeta();
-      }
-      data.outputRowMeta = rowMeta.clone();
-      meta.getFields( data.outputRowMeta, getStepname(), null, null, this, repository, metaStore );
+    if ( rowMeta == null ) {
+      rowMeta = new RowMeta();
+    }
+    data.outputRowMeta = rowMeta.clone();
+    meta.getFields( data.outputRowMeta, getStepname(), null, null, this, repository, metaStore );
 
-      // Determine the indexes of the fields used!
-      //
-      determineUsedFields( rowMeta );
+    // Determine the indexes of the fields used!
+    //
+    determineUsedFields( rowMeta );
 
-      // Get the indexes of the replaced fields...
-      //
-      data.replaceIndex = new int[meta.getFieldname().length];
-      for ( int i = 0; i < meta.getFieldname().length; i++ ) {
-        if ( meta.getReplace()[i] ) {
-          data.replaceIndex[i] = rowMeta.indexOfValue( meta.getFieldname()[i] );
+    // Get the indexes of the replaced fields...
+    //
+    data.replaceIndex = new int[meta.getFieldname().length];
+    for ( int i = 0; i < meta.getFieldname().length; i++ ) {
+      if ( meta.getReplace()[i] ) {
+        data.replaceIndex[i] = rowMeta.indexOfValue( meta.getFieldname()[i] );
+        if ( data.replaceIndex[i] < 0 ) {
+          if ( Const.isEmpty( meta.getFieldname()[i] ) ) {
+            throw new KettleStepException( BaseMessages.getString( PKG,
+              "ScriptValuesMetaMod.Exception.FieldToReplaceNotFound", meta.getFieldname()[i] ) );
+          }
+          data.replaceIndex[i] = rowMeta.indexOfValue( meta.getRename()[i] );
           if ( data.replaceIndex[i] < 0 ) {
-            if ( Const.isEmpty( meta.getFieldname()[i] ) ) {
-              throw new KettleStepException( BaseMessages.getString( PKG,
-                "ScriptValuesMetaMod.Exception.FieldToReplaceNotFound", meta.getFieldname()[i] ) );
-            }
-            data.replaceIndex[i] = rowMeta.indexOfValue( meta.getRename()[i] );
-            if ( data.replaceIndex[i] < 0 ) {
-              throw new KettleStepException( BaseMessages.getString( PKG,
-                "ScriptValuesMetaMod.Exception.FieldToReplaceNotFound", meta.getRename()[i] ) );
-            }
+            throw new KettleStepException( BaseMessages.getString( PKG,
+              "ScriptValuesMetaMod.Exception.FieldToReplaceNotFound", meta.getRename()[i] ) );
           }
-        } else {
-          data.replaceIndex[i] = -1;
         }
+      } else {
+        data.replaceIndex[i] = -1;
       }
+    }
 
-      data.context = data.engine.getContext();
-      if ( data.context == null ) {
-        data.context = new SimpleScriptContext();
+    // Look up the row sets of the target streams the script can route rows to
+    //
+    data.targetRowSets = new RowSet[meta.getTargetName().length];
+    for ( int i = 0; i < data.targetRowSets.length; i++ ) {
+      String targetStepname = meta.getTargetStepname( i );
+      data.targetRowSets[i] = findOutputRowSet( targetStepname );
+      if ( data.targetRowSets[i] == null ) {
+        throw new KettleStepException( BaseMessages.getString( PKG, "SuperScript.Exception.TargetStepNotFound",
+          meta.getTargetName()[i], targetStepname ) );
+      }
+    }
+    // The rows the script doesn't route go to the other next steps only
+    data.defaultRowSets = new ArrayList<RowSet>();
+    if ( data.targetRowSets.length > 0 ) {
+      for ( RowSet rowSet : getOutputRowSets() ) {
+        if ( !Arrays.asList( data.targetRowSets ).contains( rowSet ) ) {
+          data.defaultRowSets.add( rowSet );
+        }
       }
-      bindings = data.engine.getBindings( ScriptContext.ENGINE_SCOPE );
+    }
+    data.nextDefaultRowSet = 0;
 
-      bFirstRun = true;
+    data.evaluator.init( rowMeta, row );
+  }
 
-      bindings.put( "step", this );
+  private boolean addValues( RowMetaInterface rowMeta, Object[] row ) throws KettleException {
+    if ( first ) {
+      initScript( rowMeta, row );
+    }
 
-      // Adding the existing Scripts to the Context
-      //
-      for ( int i = 0; i < meta.getNumberOfScripts(); i++ ) {
-        bindings.put( scripts[i].getScriptName(), scripts[i].getScript() );
-      }
+    Object[] outputRow = data.evaluator.processRow( row, lastRow, ++rownr );
+    iTranStat = data.evaluator.getTransStatus();
+    bRC = writeResult( outputRow, iTranStat, data.evaluator.getEmittedRows(), data.evaluator.getRoutes() );
+    return bRC;
+  }
 
-      // Adding the Name of the Transformation to the Context
-      //
-      bindings.put( "stepName", this.getStepname() );
-      bindings.put( "transName", this.getTrans().getName() );
+  /**
+   * Writes the rows the script emitted (if the transformation goes on) and the output row, or acts on the
+   * trans_Status.
+   *
+   * @param routes the indexes of the target streams to write the rows to, null if the script didn't route them
+   * @return false if the step has to stop
+   */
+  private boolean writeResult( Object[] outputRow, int tranStat, List<Object[]> emittedRows, int[] routes )
+    throws KettleStepException {
+    if ( tranStat == CONTINUE_TRANSFORMATION || tranStat == SKIP_TRANSFORMATION ) {
+      for ( int i = 0; i < emittedRows.size(); i++ ) {
+        writeRow( emittedRows.get( i ), routes );
+      }
+    }
+    if ( tranStat == CONTINUE_TRANSFORMATION ) {
+      if ( outputRow != null ) {
+        writeRow( outputRow, routes );
+      }
+      return true;
+    }
+    return handleTransStatus( tranStat );
+  }
 
-      try {
-        try {
-          bindings.put( "row", row );
-          bindings.put( "lastRow", lastRow );
-
-          // also add the meta information for the whole row
-          //
-          bindings.put( "rowMeta", rowMeta );
-
-          // Add the used fields...
-          //
-          if ( data.fields_used != null ) {
-            for ( int i = 0; i < data.fields_used.length; i++ ) {
-              ValueMetaInterface valueMeta = rowMeta.getValueMeta( data.fields_used[i] );
-              Object valueData = row[data.fields_used[i]];
-
-              Object normalStorageValueData = valueMeta.convertToNormalStorageType( valueData );
-              bindings.put( valueMeta.getName(), normalStorageValueData );
-            }
+  /**
+   * Writes a row to the target streams it was routed to. Without targets a row that isn't routed is written the usual
+   * way. With targets it only goes to the next steps that aren't targets, distributed over them or copied to each of
+   * them like the step's rows normally are, and it's dropped if every next step is a target.
+   */
+  private void writeRow( Object[] outputRow, int[] routes ) throws KettleStepException {
+    if ( routes == null ) {
+      if ( data.targetRowSets.length == 0 ) {
+        putRow( data.outputRowMeta, outputRow );
+      } else if ( !data.defaultRowSets.isEmpty() ) {
+        if ( getStepMeta().isDistributes() ) {
+          putRowTo( data.outputRowMeta, outputRow, data.defaultRowSets.get( data.nextDefaultRowSet ) );
+          data.nextDefaultRowSet = ( data.nextDefaultRowSet + 1 ) % data.defaultRowSets.size();
+        } else {
+          for ( int i = 0; i < data.defaultRowSets.size(); i++ ) {
+            putRowTo( data.outputRowMeta, copyOf( outputRow, i ), data.defaultRowSets.get( i ) );
           }
-
-        } catch ( Throwable t ) {
-          logError( BaseMessages.getString( PKG, "SuperScript.Exception.ErrorSettingVariable" ), t );
         }
+      }
+      return;
+    }
+    for ( int i = 0; i < routes.length; i++ ) {
+      putRowTo( data.outputRowMeta, copyOf( outputRow, i ), data.targetRowSets[routes[i]] );
+    }
+  }
 
-        // Modification for Additional SuperScript parsing
-        //
-        try {
-          if ( meta.getAddClasses() != null ) {
-            for ( int i = 0; i < meta.getAddClasses().length; i++ ) {
-              bindings.put( meta.getAddClasses()[i].getScriptName(), meta.getAddClasses()[i].getAddObject() );
-            }
-          }
-        } catch ( Exception e ) {
-          throw new KettleValueException( BaseMessages.getString( PKG,
-            "SuperScript.Log.CouldNotAttachAdditionalScripts" ), e );
+  /**
+   * A row sent to more than one row set needs its own copy for every extra row set.
+   */
+  private Object[] copyOf( Object[] outputRow, int rowSetNr ) {
+    if ( rowSetNr == 0 ) {
+      return outputRow;
+    }
+    Object[] copy = RowDataUtil.allocateRowData( data.outputRowMeta.size() );
+    System.arraycopy( outputRow, 0, copy, 0, data.outputRowMeta.size() );
+    return copy;
+  }
+
+  /**
+   * Acts on a trans_Status other than CONTINUE_TRANSFORMATION.
+   *
+   * @return false if the step has to stop
+   */
+  private boolean handleTransStatus( int tranStat ) {
+    switch ( tranStat ) {
+      case SKIP_TRANSFORMATION:
+        // eat this row.
+        return true;
+      case ABORT_TRANSFORMATION:
+        if ( data.engine != null )
+        // Context.exit(); TODO AKRETION not sure
+        {
+          stopAll();
         }
+        setOutputDone();
+        return false;
+      case ERROR_TRANSFORMATION:
+        if ( data.engine != null )
+        // Context.exit(); TODO AKRETION not sure
+        {
+          setErrors( 1 );
+        }
+        stopAll();
+        return false;
+      default:
+        // TODO: kick this "ERROR handling" junk out now that we have
+        // solid error handling in place.
+        //
+        return bRC;
+    }
+  }
 
-        // Adding some Constants to the compiledScript
-        try {
+  protected Object evalScript() throws ScriptException {
+    return data.evaluator.eval();
+  }
 
-          bindings.put( "SKIP_TRANSFORMATION", Integer.valueOf( SKIP_TRANSFORMATION ) );
-          bindings.put( "ABORT_TRANSFORMATION", Integer.valueOf( ABORT_TRANSFORMATION ) );
-          bindings.put( "ERROR_TRANSFORMATION", Integer.valueOf( ERROR_TRANSFORMATION ) );
-          bindings.put( "CONTINUE_TRANSFORMATION", Integer.valueOf( CONTINUE_TRANSFORMATION ) );
+  public Object getValueFromScript( Object result, int i ) throws KettleValueException {
+    return data.evaluator.getValue( result, i );
+  }
 
-        } catch ( Exception ex ) {
-          throw new KettleValueException(
-            BaseMessages.getString( PKG, "SuperScript.Log.CouldNotAddDefaultConstants" ), ex );
-        }
+  public RowMetaInterface getOutputRowMeta() {
+    return data.outputRowMeta;
+  }
 
-        try {
-          // Checking for StartScript
-          if ( strStartScript != null && strStartScript.length() > 0 ) {
-            if ( log.isDetailed() ) {
-              logDetailed( ( "Start compiledScript found!" ) );
-            }
-            if ( data.engine instanceof Compilable ) {
-              CompiledScript startScript = ( (Compilable) data.engine ).compile( strStartScript );
-              startScript.eval( bindings );
-            } else {
-              // Can't compile beforehand, so just eval it
-              data.engine.eval( strStartScript );
-            }
-
-          } else {
-            if ( log.isDetailed() ) {
-              logDetailed( ( "No starting compiledScript found!" ) );
-            }
-          }
-        } catch ( Exception es ) {
-          throw new KettleValueException(
-            BaseMessages.getString( PKG, "SuperScript.Log.ErrorProcessingStartScript" ), es );
+  public boolean processRow( StepMetaInterface smi, StepDataInterface sdi ) throws KettleException {
 
-        }
+    meta = (SuperScriptMeta) smi;
+    data = (SuperScriptData) sdi;
 
-        data.rawScript = strTransformScript;
-        // Now Compile our SuperScript if supported by the engine
-        if ( data.engine instanceof Compilable ) {
-          data.compiledScript = ( (Compilable) data.engine ).compile( strTransformScript );
+    if ( isBatchMode() ) {
+      return processBatchRow();
+    }
+    if ( isStreamMode() ) {
+      return processStream();
+    }
 
-        } else {
-          data.compiledScript = null;
-        }
-      } catch ( Exception e ) {
-        throw new KettleValueException( BaseMessages.getString( PKG, "SuperScript.Log.CouldNotCompileScript" ), e );
+    Object[] r = getRow(); // Get row from input rowset & set row busy!
+    if ( r == null && !first ) {
+      if ( data.parallelRunner != null && !finishParallel() ) {
+        return false;
       }
+      endProcessing();
+      return false;
     }
 
-    bindings.put( "rowNumber", ++rownr );
+    if ( r != null && meta.getParallelWorkers() > 1 ) {
+      return processParallelRow( r );
+    }
 
-    // Filling the defined TranVars with the Values from the Row
-    //
-    Object[] outputRow = RowDataUtil.resizeArray( row, data.outputRowMeta.size() );
+    processSerialRow( r );
 
-    // Keep an index...
-    int outputIndex = rowMeta == null ? 0 : rowMeta.size();
+    // Drain the rows that are already waiting, up to the quota, without going back through the step loop
+    if ( r != null ) {
+      int quota = meta.getRowsPerCall();
+      for ( int n = 1; bRC && n < quota && !isStopped() && isInputAvailable(); n++ ) {
+        r = getRow();
+        if ( r == null ) {
+          // The next call sees the end of the input
+          break;
+        }
+        processSerialRow( r );
+      }
+    }
+    return bRC;
+  }
 
+  private void processSerialRow( Object[] r ) throws KettleException {
+    // Getting the Row, with the Transformation Status
     try {
-      try {
-        bindings.put( "row", row );
+      addValues( getInputRowMeta(), r );
+    } catch ( KettleValueException e ) {
+      bRC = handleScriptError( e, Collections.<Object[]>singletonList( r ) );
+    }
 
-        // Try to add the last row's data (null or not)
-        try {
-          bindings.put( "lastRow", lastRow );
-        } catch ( Throwable t ) {
-          logError( BaseMessages.getString( PKG, "SuperScript.Exception.ErrorSettingVariable", "lastRow" ), t );
-        }
+    if ( checkFeedback( getLinesRead() ) ) {
+      logBasic( BaseMessages.getString( PKG, "SuperScript.Log.LineNumber" ) + getLinesRead() );
+    }
+    lastRow = r;
+  }
 
-        for ( int i = 0; i < data.fields_used.length; i++ ) {
-          ValueMetaInterface valueMeta = rowMeta.getValueMeta( data.fields_used[i] );
-          Object valueData = row[data.fields_used[i]];
+  /**
+   * @return true if a row is waiting in one of the input row sets, so getRow() won't block
+   */
+  private boolean isInputAvailable() {
+    List<RowSet> rowSets = getInputRowSets();
+    for ( int i = 0; i < rowSets.size(); i++ ) {
+      if ( rowSets.get( i ).size() > 0 ) {
+        return true;
+      }
+    }
+    return false;
+  }
 
-          Object normalStorageValueData = valueMeta.convertToNormalStorageType( valueData );
+  /**
+   * Sends the rows to the error stream when error handling is enabled, logs the error otherwise.
+   *
+   * @return false if the step has to stop
+   */
+  private boolean handleScriptError( KettleValueException e, List<Object[]> rows ) throws KettleStepException {
+    String location = "<unknown>";
+    if ( e.getCause() instanceof ScriptException ) {
+      ScriptException ee = (ScriptException) e.getCause();
+      location = "--> " + ee.getLineNumber() + ":" + ee.getColumnNumber(); // $NON-NLS-1$
+      //
+    }
 
-          bindings.put( valueMeta.getName(), normalStorageValueData );
-        }
+    if ( getStepMeta().isDoingErrorHandling() ) {
+      for ( Object[] row : rows ) {
+        putError( getInputRowMeta(), row, 1, e.getMessage() + Const.CR + location, null, "SCR-001" );
+      }
+      return true; // continue by all means, even on the first row and
+      // out of this ugly design
+    } else {
+      logError( BaseMessages.getString( PKG, "SuperScript.Exception.CouldNotExecuteScript", location ), e );
+      setErrors( 1 );
+      return false;
+    }
+  }
 
-        // also add the meta information for the whole row
-        //
-        bindings.put( "rowMeta", rowMeta );
-      } catch ( Exception e ) {
-        throw new KettleValueException( BaseMessages.getString( PKG, "SuperScript.Log.UnexpectedError" ), e );
+  /**
+   * Parallel mode: hands the row to the worker evaluators and writes the results that are ready, in input order.
+   * <p>
+   * The previous row the script sees is a copy of that row as it came in: the worker evaluating it may still be
+   * changing the row itself (widening it, or writing to it through the row view) while the next row is evaluated.
+   */
+  private boolean processParallelRow( Object[] r ) throws KettleException {
+    if ( first ) {
+      initScript( getInputRowMeta(), r );
+      startParallel( r );
+    }
+
+    Object[] inputRow = r.clone();
+    data.parallelRunner.submit( r, lastRow, ++rownr );
+    lastRow = inputRow;
+
+    // Write what's ready, wait for results when the reorder buffer is full
+    bRC = true;
+    ParallelScriptRunner.RowTask task;
+    while ( bRC && ( task = data.parallelRunner.take( data.parallelRunner.isFull() ) ) != null ) {
+      bRC = writeParallelResult( task );
+    }
+
+    if ( checkFeedback( getLinesRead() ) ) {
+      logBasic( BaseMessages.getString( PKG, "SuperScript.Log.LineNumber" ) + getLinesRead() );
+    }
+    return bRC;
+  }
+
+  /**
+   * Creates the additional evaluators (each with its own engine, or its own context on the shared engine) and starts
+   * the worker threads. The start script runs once for every evaluator.
+   */
+  private void startParallel( Object[] firstRow ) throws KettleException {
+    ScriptEvaluator[] evaluators = new ScriptEvaluator[meta.getParallelWorkers()];
+    evaluators[0] = data.evaluator;
+    for ( int i = 1; i < evaluators.length; i++ ) {
+      ScriptEngine engine = acquireEngine();
+      evaluators[i] = new ScriptEvaluator( this, meta, data, engine, data.sharedEngine );
+      evaluators[i].compile( strStartScript, strTransformScript, strEndScript );
+      evaluators[i].init( getInputRowMeta(), firstRow );
+    }
+    data.parallelRunner = new ParallelScriptRunner( getStepname(), evaluators, meta.isParallelOrdered() );
+    logBasic( BaseMessages.getString( PKG, "SuperScript.Log.ParallelWorkers", String.valueOf( evaluators.length ),
+      getParallelModeDescription() ) );
+  }
+
+  private String getParallelModeDescription() {
+    return BaseMessages.getString( PKG, meta.isParallelOrdered()
+      ? "SuperScript.ParallelMode.Ordered" : "SuperScript.ParallelMode.Unordered" );
+  }
+
+  /**
+   * Writes the remaining parallel results and stops the workers.
+   *
+   * @return false if the step has to stop
+   */
+  private boolean finishParallel() throws KettleException {
+    try {
+      ParallelScriptRunner.RowTask task;
+      while ( ( task = data.parallelRunner.take( true ) ) != null ) {
+        if ( !writeParallelResult( task ) ) {
+          return false;
+        }
       }
+      return true;
+    } finally {
+      data.parallelRunner.stop();
+      logBasic( BaseMessages.getString( PKG, "SuperScript.Log.ParallelRowsPerWorker", getParallelModeDescription(),
+        Arrays.toString( data.parallelRunner.getRowsPerWorker() ) ) );
+    }
+  }
 
-      Object scriptResult = evalScript();
+  private boolean writeParallelResult( ParallelScriptRunner.RowTask task ) throws KettleException {
+    if ( task.isCancelled() ) {
+      // The step is being stopped, the row is neither written nor an error
+      return false;
+    }
+    if ( task.getException() != null ) {
+      return handleScriptError( task.getException(), Collections.<Object[]>singletonList( task.getRow() ) );
+    }
+    iTranStat = task.getTransStatus();
+    return writeResult( task.getOutputRow(), iTranStat, task.getEmittedRows(), task.getRoutes() );
+  }
+
+  /**
+   * Runs the end script and signals the end of the output.
+   */
+  private void endProcessing() {
+    if ( data.evaluator != null && data.evaluator.isInitialized() && log.isDetailed() ) {
+      logOutputRowStatistics();
+    }
+
+    // Modification for Additional End Function
+    try {
+      if ( data.evaluator != null && data.evaluator.isInitialized() ) {
 
-      if ( bFirstRun ) {
-        bFirstRun = false;
-        // Check if we had a Transformation Status
-        Object tran_stat = bindings.get( "trans_Status" );
-        if ( tran_stat != null ) {
-          bWithTransStat = true;
+        // Run the start and transformation scripts once if there are no incoming rows
+
+        // Checking for EndScript
+        if ( strEndScript != null && strEndScript.length() > 0 ) {
+          data.evaluator.evalEndScript();
           if ( log.isDetailed() ) {
-            logDetailed( ( "trans_Status found. Checking transformation status while compiledScript execution." ) );
+            logDetailed( ( "End Script found!" ) );
           }
         } else {
           if ( log.isDetailed() ) {
-            logDetailed( ( "No trans_Status found. Transformation status checking not available." ) );
+            logDetailed( ( "No end Script found!" ) );
           }
-          bWithTransStat = false;
-        }
-      }
-
-      iTranStat = CONTINUE_TRANSFORMATION;
-      if ( bWithTransStat ) {
-        Object tran_stat = bindings.get( "trans_Status" );
-        if ( Integer.class.isAssignableFrom( tran_stat.getClass() ) ) {
-          iTranStat = (Integer) tran_stat;
         }
       }
+    } catch ( Exception e ) {
+      logError( BaseMessages.getString( PKG, "SuperScript.Log.UnexpectedError" ) + " : " + e.toString() );
+      logError( BaseMessages.getString( PKG, "SuperScript.Log.ErrorStackTrace" ) + Const.CR
+        + Const.getStackTracker( e ) );
+      setErrors( 1 );
+      stopAll();
+    }
 
-      if ( iTranStat == CONTINUE_TRANSFORMATION ) {
-        bRC = true;
-        for ( int i = 0; i < meta.getFieldname().length; i++ ) {
-          Object result = bindings.get( meta.getFieldname()[i] );
-          Object valueData = getValueFromScript(
-            meta.getScriptResult()[i] ? scriptResult : result,
-            i
-          );
-          if ( data.replaceIndex[i] < 0 ) {
-            outputRow[outputIndex++] = valueData;
-          } else {
-            outputRow[data.replaceIndex[i]] = valueData;
-          }
-        }
+    if ( data.engine != null ) {
+      setOutputDone();
+    }
+  }
 
-        putRow( data.outputRowMeta, outputRow );
-      } else {
-        switch ( iTranStat ) {
-          case SKIP_TRANSFORMATION:
-            // eat this row.
-            bRC = true;
-            break;
-          case ABORT_TRANSFORMATION:
-            if ( data.engine != null )
-            // Context.exit(); TODO AKRETION not sure
-            {
-              stopAll();
-            }
-            setOutputDone();
-            bRC = false;
-            break;
-          case ERROR_TRANSFORMATION:
-            if ( data.engine != null )
-            // Context.exit(); TODO AKRETION not sure
-            {
-              setErrors( 1 );
-            }
-            stopAll();
-            bRC = false;
-            break;
-          default:
-            break;
-        }
+  /**
+   * Logs how many output rows were widened in place and how many had to be copied, and how many values were written to
+   * the bindings, over all the evaluators.
+   */
+  private void logOutputRowStatistics() {
+    ScriptEvaluator[] evaluators = data.parallelRunner != null
+      ? data.parallelRunner.getEvaluators() : new ScriptEvaluator[]{ data.evaluator };
+    long widened = 0;
+    long copied = 0;
+    for ( ScriptEvaluator evaluator : evaluators ) {
+      widened += evaluator.getRowAllocator().getWidenedCount();
+      copied += evaluator.getRowAllocator().getCopiedCount();
+    }
+    logDetailed( BaseMessages.getString( PKG, "SuperScript.Log.OutputRows", String.valueOf( widened ),
+      String.valueOf( copied ) ) );
 
-        // TODO: kick this "ERROR handling" junk out now that we have
-        // solid error handling in place.
-        //
-      }
-    } catch ( ScriptException e ) {
-      throw new KettleValueException( BaseMessages.getString( PKG, "SuperScript.Log.SuperScriptError" ), e );
+    // The values bound once versus the writes that still happen while the rows are evaluated
+    long writes = 0;
+    for ( ScriptEvaluator evaluator : evaluators ) {
+      writes += evaluator.getBindings().getWriteCount();
     }
-    return bRC;
+    logDetailed( BaseMessages.getString( PKG, "SuperScript.Log.BindingWrites",
+      String.valueOf( data.evaluator.getBindings().getStepScope().size() ), String.valueOf( writes ),
+      String.valueOf( rownr ) ) );
   }
 
-  protected Object evalScript() throws ScriptException {
-    if ( data.compiledScript != null ) {
-      try {
-        return data.compiledScript.eval( data.context );
-      } catch ( UnsupportedOperationException uoe ) {
-        // The script engine might not support eval with script context, so try just the Bindings instead
-        return data.compiledScript.eval( bindings );
-      }
+  private boolean isBatchMode() {
+    return meta.getExecutionMode() == SuperScriptMeta.EXECUTION_MODE_BATCH;
+  }
 
-    } else if ( data.engine != null && data.rawScript != null ) {
-      try {
-        return data.engine.eval( data.rawScript, data.context );
-      } catch ( UnsupportedOperationException uoe ) {
-        // The script engine might not support eval with script context, so try just the Bindings instead
-        return data.engine.eval( data.rawScript, bindings );
+  private boolean isStreamMode() {
+    return meta.getExecutionMode() == SuperScriptMeta.EXECUTION_MODE_STREAM;
+  }
+
+  /**
+   * Stream mode: evaluates the transform script once, handing it an iterator that reads the rows as the script loops
+   * over them. Only the rows the script emits are written. Called once, it processes the whole input.
+   */
+  private boolean processStream() throws KettleException {
+    Object[] r = getRow(); // Get row from input rowset & set row busy!
+    initScript( getInputRowMeta(), r );
+
+    RowIterator rows = new RowIterator( this, r );
+    streamRow = null;
+    try {
+      data.evaluator.processStream( rows );
+      // The rows emitted for the last row, or by a script that didn't iterate at all
+      flushStreamRow();
+      iTranStat = data.evaluator.getTransStatus();
+      if ( iTranStat != CONTINUE_TRANSFORMATION && iTranStat != SKIP_TRANSFORMATION
+        && !handleTransStatus( iTranStat ) ) {
+        return false;
+      }
+    } catch ( KettleValueException e ) {
+      if ( !handleScriptError( e, streamRow == null
+        ? Collections.<Object[]>emptyList() : Collections.<Object[]>singletonList( streamRow ) ) ) {
+        return false;
       }
     }
-    return null;
+
+    // The script can stop iterating early, the rows it left must still be read so the previous steps can finish
+    long skipped = 0;
+    while ( !isStopped() && getRow() != null ) {
+      skipped++;
+    }
+    if ( skipped > 0 && log.isDetailed() ) {
+      logDetailed( BaseMessages.getString( PKG, "SuperScript.Log.StreamRowsSkipped", String.valueOf( skipped ) ) );
+    }
+
+    endProcessing();
+    return false;
   }
 
-  public Object getValueFromScript( Object result, int i ) throws KettleValueException {
-    if ( meta.getFieldname()[i] != null && meta.getFieldname()[i].length() > 0 ) {
-      // res.setName(meta.getRename()[i]);
-      // res.setType(meta.getType()[i]);
+  /**
+   * Stream mode: writes the rows emitted for the previous row and moves the script on to the given row. Called by
+   * {@link RowIterator#next()}.
+   */
+  void startStreamRow( Object[] row ) throws KettleException {
+    flushStreamRow();
+    if ( streamRow != null ) {
+      lastRow = streamRow;
+    }
+    streamRow = row;
+    data.evaluator.setCurrentRow( row, lastRow, ++rownr );
 
-      try {
-        if ( result != null ) {
-          String classType = result.getClass().getName();
-          switch ( meta.getType()[i] ) {
-            case ValueMetaInterface.TYPE_NUMBER:
-              if ( classType.equalsIgnoreCase( "org.mozilla.javascript.Undefined" ) ) {
-                return null;
-              } else if ( classType.equalsIgnoreCase( "org.mozilla.javascript.NativeJavaObject" ) ) {
-                try {
-                  // Is it a java Value class ?
-                  Value v = (Value) result;
-                  return v.getNumber();
-                } catch ( Exception e ) {
-                  String string = (String) result;
-                  return new Double( Double.parseDouble( Const.trim( string ) ) );
-                }
-              } else if ( classType.equalsIgnoreCase( "org.mozilla.javascript.NativeNumber" ) ) {
-                Number nb = (Number) result;
-                return new Double( nb.doubleValue() );// TODO AKRETION
-                // not sure
-              } else if ( Number.class.isAssignableFrom( result.getClass() ) ) {
-                Number nb = (Number) result;
-                return new Double( nb.doubleValue() );
-              } else {
-                // Last resort, try to parse from toString()
-                return Double.parseDouble( result.toString() );
-              }
-
-            case ValueMetaInterface.TYPE_INTEGER:
-              if ( classType.equalsIgnoreCase( "java.lang.Byte" ) ) {
-                return new Long( ( (java.lang.Byte) result ).longValue() );
-              } else if ( classType.equalsIgnoreCase( "java.lang.Short" ) ) {
-                return new Long( ( (Short) result ).longValue() );
-              } else if ( classType.equalsIgnoreCase( "java.lang.Integer" ) ) {
-                return new Long( ( (Integer) result ).longValue() );
-              } else if ( classType.equalsIgnoreCase( "java.lang.Long" ) ) {
-                return new Long( ( (Long) result ).longValue() );
-              } else if ( classType.equalsIgnoreCase( "java.lang.Double" ) ) {
-                return new Long( ( (Double) result ).longValue() );
-              } else if ( classType.equalsIgnoreCase( "java.lang.String" ) ) {
-                return new Long( ( new Long( (String) result ) ).longValue() );
-              } else if ( classType.equalsIgnoreCase( "org.mozilla.javascript.Undefined" ) ) {
-                return null;
-              } else if ( classType.equalsIgnoreCase( "org.mozilla.javascript.NativeNumber" ) ) {
-                Number nb = (Number) result;
-                return new Long( nb.longValue() );
-              } else if ( classType.equalsIgnoreCase( "org.mozilla.javascript.NativeJavaObject" ) ) {
-                try {
-                  Value value = (Value) result;
-                  return value.getInteger();
-                } catch ( Exception e2 ) {
-                  String string = (String) result;
-                  return new Long( Long.parseLong( Const.trim( string ) ) );
-                }
-              } else {
-                return Long.valueOf( Long.parseLong( result.toString() ) );
-              }
-
-            case ValueMetaInterface.TYPE_STRING:
-              if ( classType.equalsIgnoreCase( "org.mozilla.javascript.NativeJavaObject" )
-                || classType.equalsIgnoreCase( "org.mozilla.javascript.Undefined" ) ) {
-                // Is it a java Value class ?
-                try {
-                  Value v = (Value) result;
-                  return v.toString();
-                } catch ( Exception ev ) {
-                  // convert to a string should work in most
-                  // cases...
-                  //
-                  String string = (String) result;
-                  return string;
-                }
-              } else {
-                // A String perhaps?
-                String string = (String) result;
-                return string;
-              }
-
-            case ValueMetaInterface.TYPE_DATE:
-              double dbl = 0;
-              if ( classType.equalsIgnoreCase( "org.mozilla.javascript.Undefined" ) ) {
-                return null;
-              } else {
-                if ( classType.equalsIgnoreCase( "org.mozilla.javascript.NativeDate" ) ) {
-                  dbl = (Double) result;// TODO AKRETION not sure
-                } else if ( classType.equalsIgnoreCase( "org.mozilla.javascript.NativeJavaObject" )
-                  || classType.equalsIgnoreCase( "java.util.Date" ) ) {
-                  // Is it a java Date() class ?
-                  try {
-                    Date dat = (Date) result;
-                    dbl = dat.getTime();
-                  } catch ( Exception e ) {
-                    // Is it a Value?
-                    //
-                    try {
-                      Value value = (Value) result;
-                      return value.getDate();
-                    } catch ( Exception e2 ) {
-                      try {
-                        String string = (String) result;
-                        return XMLHandler.stringToDate( string );
-                      } catch ( Exception e3 ) {
-                        throw new KettleValueException( "Can't convert a string to a date" );
-                      }
-                    }
-                  }
-                } else if ( classType.equalsIgnoreCase( "java.lang.Double" ) ) {
-                  dbl = ( (Double) result ).doubleValue();
-                } else {
-                  String string = (String) result;
-                  dbl = Double.parseDouble( string );
-                }
-                long lng = Math.round( dbl );
-                Date dat = new Date( lng );
-                return dat;
-              }
-
-            case ValueMetaInterface.TYPE_BOOLEAN:
-              return result;
-
-            case ValueMetaInterface.TYPE_BIGNUMBER:
-              if ( classType.equalsIgnoreCase( "org.mozilla.javascript.Undefined" ) ) {
-                return null;
-              } else if ( classType.equalsIgnoreCase( "org.mozilla.javascript.NativeNumber" ) ) {
-                Number nb = (Number) result;// TODO AKRETION not
-                // sure
-                return new BigDecimal( nb.longValue() );
-              } else if ( classType.equalsIgnoreCase( "org.mozilla.javascript.NativeJavaObject" ) ) {
-                // Is it a BigDecimal class ?
-                try {
-                  BigDecimal bd = (BigDecimal) result;
-                  return bd;
-                } catch ( Exception e ) {
-                  try {
-                    Value v = (Value) result;
-                    if ( !v.isNull() ) {
-                      return v.getBigNumber();
-                    } else {
-                      return null;
-                    }
-                  } catch ( Exception e2 ) {
-                    String string = (String) result;
-                    return new BigDecimal( string );
-                  }
-                }
-              } else if ( classType.equalsIgnoreCase( "java.lang.Byte" ) ) {
-                return new BigDecimal( ( (java.lang.Byte) result ).longValue() );
-              } else if ( classType.equalsIgnoreCase( "java.lang.Short" ) ) {
-                return new BigDecimal( ( (Short) result ).longValue() );
-              } else if ( classType.equalsIgnoreCase( "java.lang.Integer" ) ) {
-                return new BigDecimal( ( (Integer) result ).longValue() );
-              } else if ( classType.equalsIgnoreCase( "java.lang.Long" ) ) {
-                return new BigDecimal( ( (Long) result ).longValue() );
-              } else if ( classType.equalsIgnoreCase( "java.lang.Double" ) ) {
-                return new BigDecimal( ( (Double) result ).longValue() );
-              } else if ( classType.equalsIgnoreCase( "java.lang.String" ) ) {
-                return new BigDecimal( ( new Long( (String) result ) ).longValue() );
-              } else {
-                throw new RuntimeException( "JavaScript conversion to BigNumber not implemented for " + classType );
-              }
-
-            case ValueMetaInterface.TYPE_BINARY: {
-              return result;// TODO AKRETION not sure
-              // //Context.jsToJava(result,
-              // byte[].class);
-            }
-            case ValueMetaInterface.TYPE_NONE: {
-              throw new RuntimeException( "No data output data type was specified for new field ["
-                + meta.getFieldname()[i] + "]" );
-            }
-            default: {
-              throw new RuntimeException( "JavaScript conversion not implemented for type " + meta.getType()[i] + " ("
-                + ValueMeta.getTypeDesc( meta.getType()[i] ) + ")" );
-            }
-          }
-        } else {
-          return null;
-        }
-      } catch ( Exception e ) {
-        throw new KettleValueException( BaseMessages.getString( PKG, "SuperScript.Log.ScriptError" ), e );
-      }
-    } else {
-      throw new KettleValueException( "No name was specified for result value #" + ( i + 1 ) );
+    if ( checkFeedback( getLinesRead() ) ) {
+      logBasic( BaseMessages.getString( PKG, "SuperScript.Log.LineNumber" ) + getLinesRead() );
     }
   }
 
-  public RowMetaInterface getOutputRowMeta() {
-    return data.outputRowMeta;
+  /**
+   * @return true if the script aborted the stream with status.abort() or status.error() (or trans_Status)
+   */
+  boolean isStreamHalted() {
+    int status = data.evaluator.getCurrentTransStatus();
+    return status == ABORT_TRANSFORMATION || status == ERROR_TRANSFORMATION;
   }
 
-  public boolean processRow( StepMetaInterface smi, StepDataInterface sdi ) throws KettleException {
+  /**
+   * Writes the rows the script emitted for the current stream row. Once the script aborted or failed the stream, the
+   * rows it emitted for that row are dropped, like the emitted rows of a row that fails in row mode, and the status is
+   * handled when the evaluation returns.
+   */
+  private void flushStreamRow() throws KettleStepException {
+    List<Object[]> emittedRows = data.evaluator.getEmittedRows();
+    if ( !emittedRows.isEmpty() && !isStreamHalted() ) {
+      writeResult( null, data.evaluator.getCurrentTransStatus(), emittedRows, data.evaluator.getRoutes() );
+    }
+  }
 
-    meta = (SuperScriptMeta) smi;
-    data = (SuperScriptData) sdi;
+  /**
+   * Batch mode: collects the incoming rows and evaluates the transform script once per batch. The batch is flushed when
+   * it is full, when the input is done, or when no new row arrived within the maximum latency.
+   */
+  private boolean processBatchRow() throws KettleException {
+    if ( !data.batch.isEmpty() && meta.getBatchMaxLatency() > 0
+      && !waitForInput( data.batchStarted + meta.getBatchMaxLatency() ) ) {
+      if ( !flushBatch() ) {
+        return false;
+      }
+    }
 
     Object[] r = getRow(); // Get row from input rowset & set row busy!
-    if ( r == null && !first ) {
-      // Modification for Additional End Function
-      try {
-        if ( data.engine != null ) {
-
-          // Run the start and transformation scripts once if there are no incoming rows
-
-          // Checking for EndScript
-          if ( strEndScript != null && strEndScript.length() > 0 ) {
-            data.engine.eval( strEndScript, bindings );
-            if ( log.isDetailed() ) {
-              logDetailed( ( "End Script found!" ) );
-            }
-          } else {
-            if ( log.isDetailed() ) {
-              logDetailed( ( "No end Script found!" ) );
-            }
-          }
-        }
-      } catch ( Exception e ) {
-        logError( BaseMessages.getString( PKG, "SuperScript.Log.UnexpectedError" ) + " : " + e.toString() );
-        logError( BaseMessages.getString( PKG, "SuperScript.Log.ErrorStackTrace" ) + Const.CR
-          + Const.getStackTracker( e ) );
-        setErrors( 1 );
-        stopAll();
+    if ( r == null ) {
+      if ( first ) {
+        initScript( getInputRowMeta(), null );
       }
-
-      if ( data.engine != null ) {
-        setOutputDone();
+      if ( flushBatch() ) {
+        endProcessing();
       }
       return false;
     }
 
-    // Getting the Row, with the Transformation Status
+    if ( first ) {
+      initScript( getInputRowMeta(), r );
+    }
+    if ( data.batch.isEmpty() ) {
+      data.batchStarted = System.currentTimeMillis();
+    }
+    data.batch.add( r );
+
+    if ( checkFeedback( getLinesRead() ) ) {
+      logBasic( BaseMessages.getString( PKG, "SuperScript.Log.LineNumber" ) + getLinesRead() );
+    }
+
+    if ( data.batch.size() >= meta.getBatchSize() ) {
+      return flushBatch();
+    }
+    return true;
+  }
+
+  /**
+   * Waits until a row is available on one of the input row sets, or all of them are done.
+   *
+   * @param deadline the time (in ms) after which to stop waiting
+   * @return false if the deadline passed without any input
+   */
+  private boolean waitForInput( long deadline ) {
+    List<RowSet> rowSets = getInputRowSets();
+    while ( !isStopped() ) {
+      boolean done = true;
+      for ( int i = 0; i < rowSets.size(); i++ ) {
+        RowSet rowSet = rowSets.get( i );
+        if ( rowSet.size() > 0 ) {
+          return true;
+        }
+        done &= rowSet.isDone();
+      }
+      long wait = deadline - System.currentTimeMillis();
+      if ( done ) {
+        return true;
+      }
+      if ( wait <= 0 ) {
+        return false;
+      }
+      try {
+        Thread.sleep( 1 );
+      } catch ( InterruptedException e ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Evaluates the transform script on the collected rows and writes the results.
+   *
+   * @return false if the step has to stop
+   */
+  private boolean flushBatch() throws KettleException {
+    if ( data.batch.isEmpty() ) {
+      return true;
+    }
+
     try {
-      addValues( getInputRowMeta(), r );
+      writeBatch( getInputRowMeta() );
     } catch ( KettleValueException e ) {
-      String location = "<unknown>";
-      if ( e.getCause() instanceof ScriptException ) {
-        ScriptException ee = (ScriptException) e.getCause();
-        location = "--> " + ee.getLineNumber() + ":" + ee.getColumnNumber(); // $NON-NLS-1$
-        //
+      bRC = handleScriptError( e, data.batch );
+    }
+
+    lastRow = data.batch.get( data.batch.size() - 1 );
+    data.batch.clear();
+    return bRC;
+  }
+
+  private void writeBatch( RowMetaInterface rowMeta ) throws KettleException {
+    RowBindings bindings = data.evaluator.getBindings();
+    data.batchResults.clear();
+    // The rows and results lists are in the step scope, drop the results the script replaced them with last time
+    bindings.remove( BATCH_RESULTS );
+    Object scriptResult = data.evaluator.processBatch( lastRow, rownr + 1 );
+    rownr += data.batch.size();
+
+    iTranStat = data.evaluator.getTransStatus();
+    if ( iTranStat != CONTINUE_TRANSFORMATION ) {
+      bRC = handleTransStatus( iTranStat );
+      return;
+    }
+    bRC = true;
+
+    // The script can fill the results list, or replace it with its own list or array
+    List<?> results = data.batchResults;
+    Object resultsObject = bindings.get( BATCH_RESULTS );
+    if ( resultsObject instanceof List ) {
+      results = (List<?>) resultsObject;
+    } else if ( resultsObject instanceof Object[] ) {
+      results = Arrays.asList( (Object[]) resultsObject );
+    }
+
+    int inputSize = rowMeta == null ? 0 : rowMeta.size();
+    for ( int r = 0; r < data.batch.size(); r++ ) {
+      Object[] values = null;
+      if ( r < results.size() ) {
+        Object result = results.get( r );
+        if ( result == null ) {
+          // The script dropped this row
+          continue;
+        }
+        values = getBatchValues( result );
       }
 
-      if ( getStepMeta().isDoingErrorHandling() ) {
-        putError( getInputRowMeta(), r, 1, e.getMessage() + Const.CR + location, null, "SCR-001" );
-        bRC = true; // continue by all means, even on the first row and
-        // out of this ugly design
-      } else {
-        logError( BaseMessages.getString( PKG, "SuperScript.Exception.CouldNotExecuteScript", location ), e );
-        setErrors( 1 );
-        bRC = false;
+      Object[] outputRow = data.evaluator.getRowAllocator().widen( data.batch.get( r ) );
+      int outputIndex = inputSize;
+      for ( int i = 0; i < meta.getFieldname().length; i++ ) {
+        Object result = values != null && i < values.length ? values[i] : null;
+        Object valueData = getValueFromScript( meta.getScriptResult()[i] ? scriptResult : result, i );
+        if ( data.replaceIndex[i] < 0 ) {
+          outputRow[outputIndex++] = valueData;
+        } else {
+          outputRow[data.replaceIndex[i]] = valueData;
+        }
       }
+      putRow( data.outputRowMeta, outputRow );
     }
+  }
 
-    if ( checkFeedback( getLinesRead() ) ) {
-      logBasic( BaseMessages.getString( PKG, "SuperScript.Log.LineNumber" ) + getLinesRead() );
+  /**
+   * @return the output field values of one batch result: an array or list of values, or the value itself
+   */
+  private static Object[] getBatchValues( Object result ) {
+    if ( result instanceof Object[] ) {
+      return (Object[]) result;
+    } else if ( result instanceof List ) {
+      return ( (List<?>) result ).toArray();
     }
-    lastRow = r;
-    return bRC;
+    return new Object[]{ result };
   }
 
   public boolean init( StepMetaInterface smi, StepDataInterface sdi ) {
@@ -702,7 +850,30 @@ public class SuperScript extends BaseStep implements StepInterface {
             break;
         }
       }
-      data.engine = ScriptUtils.createNewScriptEngineByLanguage( meta.getLanguageName() );
+      long engineStart = System.currentTimeMillis();
+      // In function mode processRow() is invoked through the engine's default context, so it can't be shared
+      data.sharedEngine = meta.getExecutionMode() != SuperScriptMeta.EXECUTION_MODE_FUNCTION
+        && ScriptUtils.canShareScriptEngine( meta.getLanguageName() );
+      data.engine = acquireEngine();
+      if ( log.isDetailed() ) {
+        logDetailed( "Script engine for " + meta.getLanguageName() + " resolved in "
+          + ( System.currentTimeMillis() - engineStart ) + "ms ("
+          + ScriptUtils.getScriptEngineRegistry().getStatistics() + ")"
+          + ( data.sharedEngine ? ", shared by all step copies" : "" ) );
+      }
+      if ( data.engine == null ) {
+        logError( BaseMessages.getString( PKG, "SuperScript.Log.NoScriptEngine", meta.getLanguageName() ) );
+        return false;
+      }
+
+      // Compile the scripts now, so the first row doesn't have to wait for it
+      data.evaluator = new ScriptEvaluator( this, meta, data, data.engine, data.sharedEngine );
+      try {
+        data.evaluator.compile( strStartScript, strTransformScript, strEndScript );
+      } catch ( KettleException e ) {
+        logError( BaseMessages.getString( PKG, "SuperScript.Log.CouldNotCompileScript" ), e );
+        return false;
+      }
       rownr = 0;
       lastRow = null;
       return true;
@@ -710,12 +881,49 @@ public class SuperScript extends BaseStep implements StepInterface {
     return false;
   }
 
+  /**
+   * @return the engine shared by all step copies if the engine is thread-safe, a pooled engine for this step otherwise
+   */
+  private ScriptEngine acquireEngine() {
+    if ( data.sharedEngine ) {
+      return ScriptUtils.getSharedScriptEngine( meta.getLanguageName() );
+    }
+    return ScriptUtils.checkoutScriptEngine( meta.getLanguageName() );
+  }
+
+  private void releaseEngine( ScriptEngine engine ) {
+    if ( !data.sharedEngine ) {
+      ScriptUtils.returnScriptEngine( meta.getLanguageName(), engine );
+    }
+  }
+
   public void dispose( StepMetaInterface smi, StepDataInterface sdi ) {
-    try {
-      if ( data.engine != null ) {
-        return;
+    meta = (SuperScriptMeta) smi;
+    data = (SuperScriptData) sdi;
+
+    // The engines can only go back to the pool if no worker is still evaluating a row with them
+    boolean enginesIdle = true;
+    if ( data.parallelRunner != null ) {
+      enginesIdle = data.parallelRunner.isEmpty();
+      data.parallelRunner.abort();
+      if ( enginesIdle ) {
+        ScriptEvaluator[] evaluators = data.parallelRunner.getEvaluators();
+        for ( int i = 1; i < evaluators.length; i++ ) {
+          releaseEngine( evaluators[i].getEngine() );
+        }
+      }
+      data.parallelRunner = null;
+    }
+
+    if ( data.engine != null ) {
+      if ( enginesIdle ) {
+        releaseEngine( data.engine );
+      }
+      data.engine = null;
+      data.evaluator = null;
+      if ( log.isDetailed() ) {
+        logDetailed( "Script engine pool: " + ScriptUtils.getEnginePool().getStatistics() );
       }
-    } catch ( Exception er ) {
     }
 
     super.dispose( smi, sdi );
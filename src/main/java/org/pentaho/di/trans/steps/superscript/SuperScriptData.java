@@ -20,11 +20,13 @@
 
 package org.pentaho.di.trans.steps.superscript;
 
-import javax.script.CompiledScript;
-import javax.script.ScriptContext;
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.script.ScriptEngine;
 
 import org.pentaho.di.compatibility.Value;
+import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
@@ -34,9 +36,9 @@ import org.pentaho.di.trans.step.StepDataInterface;
  */
 public class SuperScriptData extends BaseStepData implements StepDataInterface {
   public ScriptEngine engine;
-  public ScriptContext context;
-  public CompiledScript compiledScript;
-  public String rawScript;
+  public boolean sharedEngine;
+  public ScriptEvaluator evaluator;
+  public ParallelScriptRunner parallelRunner;
 
   public int fields_used[];
   public Value values_used[];
@@ -44,6 +46,14 @@ public class SuperScriptData extends BaseStepData implements StepDataInterface {
   public RowMetaInterface outputRowMeta;
   public int[] replaceIndex;
 
+  public RowSet[] targetRowSets;
+  public List<RowSet> defaultRowSets;
+  public int nextDefaultRowSet;
+
+  public List<Object[]> batch;
+  public List<Object> batchResults;
+  public long batchStarted;
+
   /**
    *
    */
@@ -51,6 +61,8 @@ public class SuperScriptData extends BaseStepData implements StepDataInterface {
     super();
     engine = null;
     fields_used = null;
+    batch = new ArrayList<Object[]>();
+    batchResults = new ArrayList<Object>();
   }
 
   public void check( int i ) {
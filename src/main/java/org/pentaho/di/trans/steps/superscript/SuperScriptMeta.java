@@ -59,9 +59,14 @@ import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.BaseStepMeta;
 import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.di.trans.step.StepIOMeta;
+import org.pentaho.di.trans.step.StepIOMetaInterface;
 import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.di.trans.step.errorhandling.Stream;
+import org.pentaho.di.trans.step.errorhandling.StreamIcon;
+import org.pentaho.di.trans.step.errorhandling.StreamInterface.StreamType;
 import org.pentaho.metastore.api.IMetaStore;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -75,9 +80,65 @@ public class SuperScriptMeta extends BaseStepMeta implements StepMetaInterface {
   private static final String SCRIPT_TAG_TYPE = "scriptType";
   private static final String SCRIPT_TAG_NAME = "scriptName";
   private static final String SCRIPT_TAG_SCRIPT = "scriptBody";
+  private static final String EXECUTION_MODE = "executionMode";
+  private static final String BATCH_SIZE = "batchSize";
+  private static final String BATCH_MAX_LATENCY = "batchMaxLatency";
+  private static final String PARALLEL_WORKERS = "parallelWorkers";
+  private static final String PARALLEL_ORDERED = "parallelOrdered";
+  private static final String ROWS_PER_CALL = "rowsPerCall";
+  private static final String LOAD_LIBRARIES = "loadLibraries";
+
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+  public static final int DEFAULT_BATCH_MAX_LATENCY = 500;
+  public static final int DEFAULT_ROWS_PER_CALL = 1000;
+
+  /**
+   * The transform script is evaluated for every row
+   */
+  public static final int EXECUTION_MODE_ROW = 0;
+
+  /**
+   * The transform script is evaluated once, after which its processRow function is invoked for every row
+   */
+  public static final int EXECUTION_MODE_FUNCTION = 1;
+
+  /**
+   * The transform script is evaluated once per batch of rows
+   */
+  public static final int EXECUTION_MODE_BATCH = 2;
+
+  /**
+   * The transform script is evaluated once for the whole stream, iterating over the rows itself
+   */
+  public static final int EXECUTION_MODE_STREAM = 3;
+
+  public static final String[] EXECUTION_MODE_CODES = { "row", "function", "batch", "stream" };
+
+  public static final String[] EXECUTION_MODE_DESCRIPTIONS = {
+    BaseMessages.getString( PKG, "SuperScriptMeta.ExecutionMode.Row" ),
+    BaseMessages.getString( PKG, "SuperScriptMeta.ExecutionMode.Function" ),
+    BaseMessages.getString( PKG, "SuperScriptMeta.ExecutionMode.Batch" ),
+    BaseMessages.getString( PKG, "SuperScriptMeta.ExecutionMode.Stream" ) };
+
+  /**
+   * The name of the function invoked for every row in function mode: processRow(row, rowMeta)
+   */
+  public static final String PROCESS_ROW_FUNCTION = "processRow";
 
   private String languageName;
 
+  private int executionMode;
+  private int batchSize;
+  private int batchMaxLatency; // in ms, 0 means a batch is only flushed when it's full
+  private int parallelWorkers; // the number of engines evaluating rows at the same time, 1 means no parallelism
+  private boolean parallelOrdered; // keep the input order of the rows when evaluating in parallel
+  private int rowsPerCall; // the maximum number of waiting rows processed per processRow() call
+  private boolean loadLibraries; // evaluate the library scripts before the start script
+
+  private String[] targetName = new String[0]; // the names the script routes rows to
+  private String[] targetStepname = new String[0]; // the steps the named targets point to
+  private StepMeta[] targetStep = new StepMeta[0]; // resolved in searchInfoAndTargetSteps()
+
   private ScriptAddClasses[] additionalClasses;
   private ScriptValuesScript[] scripts;
 
@@ -186,6 +247,171 @@ public class SuperScriptMeta extends BaseStepMeta implements StepMetaInterface {
     return strJSNames;
   }
 
+  /**
+   * @return Returns the execution mode, one of the EXECUTION_MODE_ constants.
+   */
+  public int getExecutionMode() {
+    return executionMode;
+  }
+
+  /**
+   * @param executionMode The execution mode to set, one of the EXECUTION_MODE_ constants. Unknown modes fall back to
+   *                      the row mode.
+   */
+  public void setExecutionMode( int executionMode ) {
+    this.executionMode =
+      executionMode >= 0 && executionMode < EXECUTION_MODE_CODES.length ? executionMode : EXECUTION_MODE_ROW;
+  }
+
+  /**
+   * @return Returns the number of rows handed to the script at once in batch mode.
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * @param batchSize The batch size to set.
+   */
+  public void setBatchSize( int batchSize ) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * @return Returns the time (in ms) after which a partial batch is flushed when no new rows arrive.
+   */
+  public int getBatchMaxLatency() {
+    return batchMaxLatency;
+  }
+
+  /**
+   * @param batchMaxLatency The maximum batch latency (in ms) to set.
+   */
+  public void setBatchMaxLatency( int batchMaxLatency ) {
+    this.batchMaxLatency = batchMaxLatency;
+  }
+
+  /**
+   * @return Returns the number of script engines evaluating rows in parallel within this step copy.
+   */
+  public int getParallelWorkers() {
+    return parallelWorkers;
+  }
+
+  /**
+   * @param parallelWorkers The number of parallel workers to set, 1 to evaluate the rows one after the other.
+   */
+  public void setParallelWorkers( int parallelWorkers ) {
+    this.parallelWorkers = parallelWorkers;
+  }
+
+  /**
+   * @return Returns true if the rows evaluated in parallel are written in input order, false if they are written as soon
+   *         as they are evaluated.
+   */
+  public boolean isParallelOrdered() {
+    return parallelOrdered;
+  }
+
+  /**
+   * @param parallelOrdered Whether to keep the input order of the rows evaluated in parallel.
+   */
+  public void setParallelOrdered( boolean parallelOrdered ) {
+    this.parallelOrdered = parallelOrdered;
+  }
+
+  /**
+   * @return Returns true if the (compiled) library scripts are evaluated before the start script, so the functions and
+   *         classes they define can be used by the other scripts.
+   */
+  public boolean isLoadLibraries() {
+    return loadLibraries;
+  }
+
+  /**
+   * @param loadLibraries Whether to evaluate the library scripts before the start script.
+   */
+  public void setLoadLibraries( boolean loadLibraries ) {
+    this.loadLibraries = loadLibraries;
+  }
+
+  /**
+   * @return Returns the maximum number of rows processed in one processRow() call, as long as rows are waiting in the
+   *         input.
+   */
+  public int getRowsPerCall() {
+    return rowsPerCall;
+  }
+
+  /**
+   * @param rowsPerCall The maximum number of rows to process per processRow() call, 1 to process one row per call.
+   */
+  public void setRowsPerCall( int rowsPerCall ) {
+    this.rowsPerCall = rowsPerCall;
+  }
+
+  /**
+   * @return Returns the names of the target streams, as used by the script to route rows.
+   */
+  public String[] getTargetName() {
+    return targetName;
+  }
+
+  /**
+   * @param targetName The names of the target streams to set.
+   */
+  public void setTargetName( String[] targetName ) {
+    this.targetName = targetName;
+  }
+
+  /**
+   * @return Returns the names of the steps the target streams point to.
+   */
+  public String[] getTargetStepname() {
+    return targetStepname;
+  }
+
+  /**
+   * @param targetStepname The names of the target steps to set.
+   */
+  public void setTargetStepname( String[] targetStepname ) {
+    this.targetStepname = targetStepname;
+  }
+
+  public void allocateTargets( int nrtargets ) {
+    targetName = new String[nrtargets];
+    targetStepname = new String[nrtargets];
+    targetStep = new StepMeta[nrtargets];
+  }
+
+  public static int getExecutionModeByCode( String code ) {
+    for ( int i = 0; i < EXECUTION_MODE_CODES.length; i++ ) {
+      if ( EXECUTION_MODE_CODES[i].equalsIgnoreCase( code ) ) {
+        return i;
+      }
+    }
+    return EXECUTION_MODE_ROW;
+  }
+
+  /**
+   * @return the code of the given execution mode, the code of the row mode if the mode is unknown
+   */
+  public static String getExecutionModeCode( int executionMode ) {
+    if ( executionMode < 0 || executionMode >= EXECUTION_MODE_CODES.length ) {
+      return EXECUTION_MODE_CODES[EXECUTION_MODE_ROW];
+    }
+    return EXECUTION_MODE_CODES[executionMode];
+  }
+
+  public static int getExecutionModeByDescription( String description ) {
+    for ( int i = 0; i < EXECUTION_MODE_DESCRIPTIONS.length; i++ ) {
+      if ( EXECUTION_MODE_DESCRIPTIONS[i].equalsIgnoreCase( description ) ) {
+        return i;
+      }
+    }
+    return getExecutionModeByCode( description );
+  }
+
   public ScriptValuesScript[] getScripts() {
     return scripts;
   }
@@ -225,12 +451,33 @@ public class SuperScriptMeta extends BaseStepMeta implements StepMetaInterface {
       retval.scriptResult[i] = scriptResult[i];
     }
 
+    int nrtargets = targetName.length;
+    retval.allocateTargets( nrtargets );
+    System.arraycopy( targetName, 0, retval.targetName, 0, nrtargets );
+    System.arraycopy( targetStepname, 0, retval.targetStepname, 0, nrtargets );
+    System.arraycopy( targetStep, 0, retval.targetStep, 0, nrtargets );
+    retval.ioMeta = null;
+
     return retval;
   }
 
   private void readData( Node stepnode ) throws KettleXMLException {
     try {
       setLanguageName( XMLHandler.getTagValue( stepnode, SCRIPT_LANGUAGE_NAME ) );
+      executionMode = getExecutionModeByCode( XMLHandler.getTagValue( stepnode, EXECUTION_MODE ) );
+      batchSize = Const.toInt( XMLHandler.getTagValue( stepnode, BATCH_SIZE ), DEFAULT_BATCH_SIZE );
+      if ( batchSize <= 0 ) {
+        batchSize = DEFAULT_BATCH_SIZE;
+      }
+      batchMaxLatency =
+        Const.toInt( XMLHandler.getTagValue( stepnode, BATCH_MAX_LATENCY ), DEFAULT_BATCH_MAX_LATENCY );
+      parallelWorkers = Math.max( 1, Const.toInt( XMLHandler.getTagValue( stepnode, PARALLEL_WORKERS ), 1 ) );
+      parallelOrdered = !"N".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, PARALLEL_ORDERED ) );
+      rowsPerCall = Const.toInt( XMLHandler.getTagValue( stepnode, ROWS_PER_CALL ), DEFAULT_ROWS_PER_CALL );
+      if ( rowsPerCall <= 0 ) {
+        rowsPerCall = DEFAULT_ROWS_PER_CALL;
+      }
+      loadLibraries = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, LOAD_LIBRARIES ) );
       Node scripts = XMLHandler.getSubNode( stepnode, "scripts" );
       int nrscripts = XMLHandler.countNodes( scripts, "script" );
       this.scripts = new ScriptValuesScript[nrscripts];
@@ -261,6 +508,16 @@ public class SuperScriptMeta extends BaseStepMeta implements StepMetaInterface {
         replace[i] = "Y".equalsIgnoreCase( XMLHandler.getTagValue( fnode, "replace" ) );
         scriptResult[i] = "Y".equalsIgnoreCase( XMLHandler.getTagValue( fnode, "scriptResult" ) );
       }
+
+      Node targets = XMLHandler.getSubNode( stepnode, "targets" );
+      int nrtargets = XMLHandler.countNodes( targets, "target" );
+      allocateTargets( nrtargets );
+      for ( int i = 0; i < nrtargets; i++ ) {
+        Node tnode = XMLHandler.getSubNodeByNr( targets, "target", i );
+        targetName[i] = XMLHandler.getTagValue( tnode, "name" );
+        targetStepname[i] = XMLHandler.getTagValue( tnode, "step" );
+      }
+      resetStepIoMeta();
     } catch ( Exception e ) {
       throw new KettleXMLException( BaseMessages.getString( PKG,
         "SuperScriptMeta.Exception.UnableToLoadStepInfoFromXML" ), e );
@@ -268,6 +525,14 @@ public class SuperScriptMeta extends BaseStepMeta implements StepMetaInterface {
   }
 
   public void setDefault() {
+    executionMode = EXECUTION_MODE_ROW;
+    batchSize = DEFAULT_BATCH_SIZE;
+    batchMaxLatency = DEFAULT_BATCH_MAX_LATENCY;
+    parallelWorkers = 1;
+    parallelOrdered = true;
+    rowsPerCall = DEFAULT_ROWS_PER_CALL;
+    loadLibraries = false;
+
     scripts = new ScriptValuesScript[1];
     scripts[0] =
       new ScriptValuesScript( ScriptValuesScript.TRANSFORM_SCRIPT, BaseMessages.getString( PKG,
@@ -286,6 +551,8 @@ public class SuperScriptMeta extends BaseStepMeta implements StepMetaInterface {
       replace[i] = false;
       scriptResult[i] = false;
     }
+
+    allocateTargets( 0 );
   }
 
   public void getFields( RowMetaInterface row, String originStepname, RowMetaInterface[] info, StepMeta nextStep,
@@ -339,6 +606,13 @@ public class SuperScriptMeta extends BaseStepMeta implements StepMetaInterface {
     StringBuffer retval = new StringBuffer( 300 );
 
     retval.append( "    " ).append( XMLHandler.addTagValue( SCRIPT_LANGUAGE_NAME, getLanguageName() ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( EXECUTION_MODE, getExecutionModeCode( executionMode ) ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( BATCH_SIZE, batchSize ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( BATCH_MAX_LATENCY, batchMaxLatency ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( PARALLEL_WORKERS, parallelWorkers ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( PARALLEL_ORDERED, parallelOrdered ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( ROWS_PER_CALL, rowsPerCall ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( LOAD_LIBRARIES, loadLibraries ) );
 
     retval.append( "    <scripts>" );
     for ( int i = 0; i < scripts.length; i++ ) {
@@ -364,6 +638,15 @@ public class SuperScriptMeta extends BaseStepMeta implements StepMetaInterface {
     }
     retval.append( "    </fields>" );
 
+    retval.append( "    <targets>" );
+    for ( int i = 0; i < targetName.length; i++ ) {
+      retval.append( "      <target>" );
+      retval.append( "        " ).append( XMLHandler.addTagValue( "name", targetName[i] ) );
+      retval.append( "        " ).append( XMLHandler.addTagValue( "step", getTargetStepname( i ) ) );
+      retval.append( "      </target>" );
+    }
+    retval.append( "    </targets>" );
+
     return retval.toString();
   }
 
@@ -372,6 +655,21 @@ public class SuperScriptMeta extends BaseStepMeta implements StepMetaInterface {
     try {
 
       setLanguageName( rep.getStepAttributeString( id_step, SCRIPT_LANGUAGE_NAME ) );
+      executionMode = getExecutionModeByCode( rep.getStepAttributeString( id_step, EXECUTION_MODE ) );
+      // The numbers are saved as strings, so a step saved without them gets the same defaults as from XML
+      batchSize = Const.toInt( rep.getStepAttributeString( id_step, BATCH_SIZE ), DEFAULT_BATCH_SIZE );
+      if ( batchSize <= 0 ) {
+        batchSize = DEFAULT_BATCH_SIZE;
+      }
+      batchMaxLatency =
+        Const.toInt( rep.getStepAttributeString( id_step, BATCH_MAX_LATENCY ), DEFAULT_BATCH_MAX_LATENCY );
+      parallelWorkers = Math.max( 1, Const.toInt( rep.getStepAttributeString( id_step, PARALLEL_WORKERS ), 1 ) );
+      parallelOrdered = rep.getStepAttributeBoolean( id_step, 0, PARALLEL_ORDERED, true );
+      rowsPerCall = Const.toInt( rep.getStepAttributeString( id_step, ROWS_PER_CALL ), DEFAULT_ROWS_PER_CALL );
+      if ( rowsPerCall <= 0 ) {
+        rowsPerCall = DEFAULT_ROWS_PER_CALL;
+      }
+      loadLibraries = rep.getStepAttributeBoolean( id_step, 0, LOAD_LIBRARIES, false );
       String script = rep.getStepAttributeString( id_step, "script" );
 
       // When in compatibility mode, we load the compiledScript, not the other tabs...
@@ -403,6 +701,14 @@ public class SuperScriptMeta extends BaseStepMeta implements StepMetaInterface {
         replace[i] = rep.getStepAttributeBoolean( id_step, i, "field_replace" );
         scriptResult[i] = rep.getStepAttributeBoolean( id_step, i, "script_result" );
       }
+
+      int nrtargets = rep.countNrStepAttributes( id_step, "target_name" );
+      allocateTargets( nrtargets );
+      for ( int i = 0; i < nrtargets; i++ ) {
+        targetName[i] = rep.getStepAttributeString( id_step, i, "target_name" );
+        targetStepname[i] = rep.getStepAttributeString( id_step, i, "target_step" );
+      }
+      resetStepIoMeta();
     } catch ( Exception e ) {
       throw new KettleException( BaseMessages.getString( PKG,
         "SuperScriptMeta.Exception.UnexpectedErrorInReadingStepInfo" ), e );
@@ -414,6 +720,13 @@ public class SuperScriptMeta extends BaseStepMeta implements StepMetaInterface {
     try {
 
       rep.saveStepAttribute( id_transformation, id_step, SCRIPT_LANGUAGE_NAME, getLanguageName() );
+      rep.saveStepAttribute( id_transformation, id_step, EXECUTION_MODE, getExecutionModeCode( executionMode ) );
+      rep.saveStepAttribute( id_transformation, id_step, BATCH_SIZE, String.valueOf( batchSize ) );
+      rep.saveStepAttribute( id_transformation, id_step, BATCH_MAX_LATENCY, String.valueOf( batchMaxLatency ) );
+      rep.saveStepAttribute( id_transformation, id_step, PARALLEL_WORKERS, String.valueOf( parallelWorkers ) );
+      rep.saveStepAttribute( id_transformation, id_step, PARALLEL_ORDERED, parallelOrdered );
+      rep.saveStepAttribute( id_transformation, id_step, ROWS_PER_CALL, String.valueOf( rowsPerCall ) );
+      rep.saveStepAttribute( id_transformation, id_step, LOAD_LIBRARIES, loadLibraries );
 
       for ( int i = 0; i < scripts.length; i++ ) {
         rep.saveStepAttribute( id_transformation, id_step, i, SCRIPT_TAG_NAME, scripts[i].getScriptName() );
@@ -430,12 +743,49 @@ public class SuperScriptMeta extends BaseStepMeta implements StepMetaInterface {
         rep.saveStepAttribute( id_transformation, id_step, i, "field_replace", replace[i] );
         rep.saveStepAttribute( id_transformation, id_step, i, "script_result", scriptResult[i] );
       }
+
+      for ( int i = 0; i < targetName.length; i++ ) {
+        rep.saveStepAttribute( id_transformation, id_step, i, "target_name", targetName[i] );
+        rep.saveStepAttribute( id_transformation, id_step, i, "target_step", getTargetStepname( i ) );
+      }
     } catch ( Exception e ) {
       throw new KettleException( BaseMessages.getString( PKG, "SuperScriptMeta.Exception.UnableToSaveStepInfo" )
         + id_step, e );
     }
   }
 
+  /**
+   * @return the name of target step i, taken from the step itself once it's known (it might have been renamed)
+   */
+  public String getTargetStepname( int i ) {
+    return targetStep[i] != null ? targetStep[i].getName() : targetStepname[i];
+  }
+
+  /**
+   * Returns the Input/Output metadata for this step. Every named target is a target stream.
+   */
+  public StepIOMetaInterface getStepIOMeta() {
+    if ( ioMeta == null ) {
+      ioMeta = new StepIOMeta( true, true, false, false, false, false );
+      for ( int i = 0; i < targetName.length; i++ ) {
+        ioMeta.addStream( new Stream( StreamType.TARGET, targetStep[i], BaseMessages.getString( PKG,
+          "SuperScriptMeta.TargetStream.Description", Const.NVL( targetName[i], "" ) ), StreamIcon.TARGET, null ) );
+      }
+    }
+    return ioMeta;
+  }
+
+  public void searchInfoAndTargetSteps( List<StepMeta> steps ) {
+    for ( int i = 0; i < targetName.length; i++ ) {
+      targetStep[i] = StepMeta.findStep( steps, targetStepname[i] );
+    }
+    resetStepIoMeta();
+  }
+
+  public boolean excludeFromCopyDistributeVerification() {
+    return targetName.length > 0;
+  }
+
   public void check( List<CheckResultInterface> remarks, TransMeta transMeta, StepMeta stepMeta, RowMetaInterface prev,
                      String input[], String output[], RowMetaInterface info, VariableSpace space, Repository repository,
                      IMetaStore metaStore ) {
@@ -480,6 +830,14 @@ public class SuperScriptMeta extends BaseStepMeta implements StepMetaInterface {
           "SuperScriptMeta.CheckResult.ConnectedStepOK", String.valueOf( prev.size() ) ), stepMeta );
       remarks.add( cr );
 
+      // Input fields named like an object of the script API are only readable through the row view
+      for ( String name : ScriptEvaluator.RESERVED_NAMES ) {
+        if ( prev.indexOfValue( name ) >= 0 ) {
+          remarks.add( new CheckResult( CheckResultInterface.TYPE_RESULT_WARNING, BaseMessages.getString( PKG,
+            "SuperScriptMeta.CheckResult.FieldHiddenByScriptApi", name ), stepMeta ) );
+        }
+      }
+
       // Adding the existing Scripts to the Context
       for ( int i = 0; i < getNumberOfScripts(); i++ ) {
         jsscope.put( scripts[i].getScriptName(), scripts[i].getScript() );
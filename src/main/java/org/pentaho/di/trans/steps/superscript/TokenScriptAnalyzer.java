@@ -0,0 +1,265 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A {@link ScriptAnalyzer} that splits the script into identifier tokens, skipping comments and string literals as
+ * described by the language's delimiters. It errs on the side of caution: identifiers in strings that can interpolate
+ * expressions are kept, and a single-line string that isn't closed on its line is scanned as code.
+ * <p>
+ * In languages with regular expression literals (/.../ in JavaScript, Ruby and Groovy), a slash where an operand is
+ * expected starts one, so quotes, comment starts or # inside it are not taken for strings or comments. The identifiers
+ * in a regular expression are always kept: Groovy and Ruby interpolate them, and if the slash was a division after
+ * all, nothing is lost.
+ *
+ * @author Matt Burgess
+ */
+public class TokenScriptAnalyzer implements ScriptAnalyzer {
+
+  /**
+   * The start and end of a comment or string literal
+   */
+  public static class Delimiter {
+    final String start;
+    final String end;
+    final boolean interpolating;
+    final boolean multiLine;
+
+    /**
+     * @param start         the opening delimiter
+     * @param end           the closing delimiter, "\n" for line comments
+     * @param interpolating whether a string can contain expressions (like "${field}" in Groovy)
+     * @param multiLine     whether the comment or string can span several lines
+     */
+    public Delimiter( String start, String end, boolean interpolating, boolean multiLine ) {
+      this.start = start;
+      this.end = end;
+      this.interpolating = interpolating;
+      this.multiLine = multiLine;
+    }
+  }
+
+  /**
+   * The characters after which a slash starts a regular expression rather than a division
+   */
+  private static final String REGEX_PRECEDERS = "(,=:[!&|?{};+-*%<>~^";
+
+  /**
+   * The keywords after which a slash starts a regular expression rather than a division
+   */
+  private static final Set<String> REGEX_KEYWORDS = new HashSet<String>( Arrays.asList( "return", "typeof",
+    "instanceof", "in", "of", "new", "delete", "void", "throw", "case", "do", "else", "if", "elsif", "unless", "while",
+    "until", "when", "and", "or", "not", "yield" ) );
+
+  private final Delimiter[] comments;
+  private final Delimiter[] strings;
+  private final boolean regexLiterals;
+
+  /**
+   * @param comments the comment delimiters
+   * @param strings  the string delimiters, longest first when one is the prefix of another (""" before ")
+   */
+  public TokenScriptAnalyzer( Delimiter[] comments, Delimiter[] strings ) {
+    this( comments, strings, false );
+  }
+
+  /**
+   * @param comments      the comment delimiters
+   * @param strings       the string delimiters, longest first when one is the prefix of another (""" before ")
+   * @param regexLiterals whether the language has /.../ regular expression literals
+   */
+  public TokenScriptAnalyzer( Delimiter[] comments, Delimiter[] strings, boolean regexLiterals ) {
+    this.comments = comments;
+    this.strings = strings;
+    this.regexLiterals = regexLiterals;
+  }
+
+  public Set<String> getReferencedNames( String script ) {
+    Set<String> names = new HashSet<String>();
+    if ( script == null ) {
+      return names;
+    }
+    int length = script.length();
+    int i = 0;
+    String lastToken = null;
+    int lastTokenEnd = -1;
+    // The last character of code (not whitespace, not in a comment), 0 at the start of the script
+    char previous = 0;
+
+    while ( i < length ) {
+      char c = script.charAt( i );
+
+      Delimiter comment = startingAt( comments, script, i );
+      if ( comment != null ) {
+        int end = script.indexOf( comment.end, i + comment.start.length() );
+        i = end < 0 ? length : end + comment.end.length();
+        continue;
+      }
+
+      if ( c == '/' && regexLiterals && isRegexStart( previous, lastToken, lastTokenEnd, script, i ) ) {
+        int end = findRegexEnd( script, i + 1 );
+        if ( end >= 0 ) {
+          addIdentifiers( script.substring( i + 1, end ), names );
+          i = end + 1;
+          previous = '/';
+          continue;
+        }
+      }
+
+      Delimiter string = startingAt( strings, script, i );
+      if ( string != null ) {
+        int contentStart = i + string.start.length();
+        int end = findStringEnd( script, contentStart, string );
+        if ( end < 0 ) {
+          // Not a string after all, go on with the code after the quote
+          i = contentStart;
+          continue;
+        }
+        String content = script.substring( contentStart, end );
+        names.add( content );
+        String prefix = lastTokenEnd == i ? lastToken : null;
+        if ( isInterpolating( string, prefix ) ) {
+          addIdentifiers( content, names );
+        }
+        i = end + string.end.length();
+        previous = '"';
+        continue;
+      }
+
+      if ( Character.isJavaIdentifierStart( c ) || Character.isDigit( c ) ) {
+        int start = i;
+        i++;
+        while ( i < length && Character.isJavaIdentifierPart( script.charAt( i ) ) ) {
+          i++;
+        }
+        // Skip numbers, like 1e5
+        if ( !Character.isDigit( c ) ) {
+          lastToken = script.substring( start, i );
+          lastTokenEnd = i;
+          names.add( lastToken );
+        }
+        previous = 'a';
+        continue;
+      }
+      if ( !Character.isWhitespace( c ) ) {
+        previous = c;
+      }
+      i++;
+    }
+    return names;
+  }
+
+  /**
+   * @return whether the slash at i starts a regular expression: at the start of the script, after an operator or an
+   *         opening bracket, or after a keyword like return
+   */
+  private static boolean isRegexStart( char previous, String lastToken, int lastTokenEnd, String script, int i ) {
+    if ( previous == 0 || REGEX_PRECEDERS.indexOf( previous ) >= 0 ) {
+      return true;
+    }
+    return previous == 'a' && lastToken != null && REGEX_KEYWORDS.contains( lastToken )
+      && script.substring( lastTokenEnd, i ).trim().length() == 0;
+  }
+
+  /**
+   * @return the index of the slash closing the regular expression, or -1 if there is none on the same line
+   */
+  private static int findRegexEnd( String script, int from ) {
+    boolean inClass = false;
+    for ( int i = from; i < script.length(); i++ ) {
+      char c = script.charAt( i );
+      if ( c == '\\' ) {
+        i++;
+      } else if ( c == '\n' ) {
+        return -1;
+      } else if ( c == '[' ) {
+        inClass = true;
+      } else if ( c == ']' ) {
+        inClass = false;
+      } else if ( c == '/' && !inClass ) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @param string the string delimiter
+   * @param prefix the identifier right in front of the opening delimiter, if any
+   * @return whether expressions in the string have to be scanned for identifiers
+   */
+  protected boolean isInterpolating( Delimiter string, String prefix ) {
+    return string.interpolating;
+  }
+
+  private static Delimiter startingAt( Delimiter[] delimiters, String script, int i ) {
+    for ( Delimiter delimiter : delimiters ) {
+      if ( script.startsWith( delimiter.start, i ) ) {
+        return delimiter;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the index of the closing delimiter, or -1 if a single-line string isn't closed on its line
+   */
+  private static int findStringEnd( String script, int from, Delimiter string ) {
+    int length = script.length();
+    int i = from;
+    while ( i < length ) {
+      char c = script.charAt( i );
+      if ( c == '\\' ) {
+        i += 2;
+        continue;
+      }
+      if ( c == '\n' && !string.multiLine ) {
+        return -1;
+      }
+      if ( script.startsWith( string.end, i ) ) {
+        return i;
+      }
+      i++;
+    }
+    return string.multiLine ? length : -1;
+  }
+
+  private static void addIdentifiers( String content, Set<String> names ) {
+    int length = content.length();
+    int i = 0;
+    while ( i < length ) {
+      // Skip the $ of "$field" and "${field}"
+      if ( content.charAt( i ) != '$' && Character.isJavaIdentifierStart( content.charAt( i ) ) ) {
+        int start = i;
+        while ( i < length && Character.isJavaIdentifierPart( content.charAt( i ) ) ) {
+          i++;
+        }
+        names.add( content.substring( start, i ) );
+      } else {
+        i++;
+      }
+    }
+  }
+}
@@ -0,0 +1,39 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import org.pentaho.di.core.exception.KettleValueException;
+
+/**
+ * Converts a value coming out of a script into the Kettle data type of an output field. Implementations are specialized
+ * for one target type and one runtime class, see {@link ValueConverters}.
+ *
+ * @author Matt Burgess
+ */
+public interface ValueConverter {
+
+  /**
+   * @param value the (non-null) value returned by the script
+   * @return the value as the native Kettle type
+   * @throws KettleValueException if the value can't be converted
+   */
+  Object convert( Object value ) throws KettleValueException;
+}
@@ -0,0 +1,235 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+import org.pentaho.di.compatibility.Value;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Resolves the {@link ValueConverter} to use for a given output type and runtime class of the script result. The
+ * resolution is done once per class (see {@link FieldConverter}), the converters themselves don't do any type checks.
+ *
+ * @author Matt Burgess
+ */
+public class ValueConverters {
+
+  public static final ValueConverter IDENTITY = new ValueConverter() {
+    public Object convert( Object value ) {
+      return value;
+    }
+  };
+
+  public static final ValueConverter TO_NULL = new ValueConverter() {
+    public Object convert( Object value ) {
+      return null;
+    }
+  };
+
+  public static final ValueConverter TO_STRING = new ValueConverter() {
+    public Object convert( Object value ) {
+      return value.toString();
+    }
+  };
+
+  // Number
+
+  public static final ValueConverter NUMBER_TO_NUMBER = new ValueConverter() {
+    public Object convert( Object value ) {
+      return new Double( ( (Number) value ).doubleValue() );
+    }
+  };
+
+  public static final ValueConverter VALUE_TO_NUMBER = new ValueConverter() {
+    public Object convert( Object value ) {
+      return ( (Value) value ).getNumber();
+    }
+  };
+
+  public static final ValueConverter PARSE_NUMBER = new ValueConverter() {
+    public Object convert( Object value ) {
+      return new Double( Double.parseDouble( Const.trim( value.toString() ) ) );
+    }
+  };
+
+  // Integer
+
+  public static final ValueConverter NUMBER_TO_INTEGER = new ValueConverter() {
+    public Object convert( Object value ) {
+      return new Long( ( (Number) value ).longValue() );
+    }
+  };
+
+  public static final ValueConverter VALUE_TO_INTEGER = new ValueConverter() {
+    public Object convert( Object value ) {
+      return ( (Value) value ).getInteger();
+    }
+  };
+
+  public static final ValueConverter PARSE_INTEGER = new ValueConverter() {
+    public Object convert( Object value ) {
+      return Long.valueOf( Long.parseLong( Const.trim( value.toString() ) ) );
+    }
+  };
+
+  // Date
+
+  public static final ValueConverter DATE_TO_DATE = new ValueConverter() {
+    public Object convert( Object value ) {
+      return new Date( ( (Date) value ).getTime() );
+    }
+  };
+
+  public static final ValueConverter NUMBER_TO_DATE = new ValueConverter() {
+    public Object convert( Object value ) {
+      return new Date( Math.round( ( (Number) value ).doubleValue() ) );
+    }
+  };
+
+  public static final ValueConverter VALUE_TO_DATE = new ValueConverter() {
+    public Object convert( Object value ) {
+      return ( (Value) value ).getDate();
+    }
+  };
+
+  public static final ValueConverter PARSE_DATE = new ValueConverter() {
+    public Object convert( Object value ) {
+      return new Date( Math.round( Double.parseDouble( value.toString() ) ) );
+    }
+  };
+
+  // BigNumber
+
+  public static final ValueConverter INTEGER_TO_BIGNUMBER = new ValueConverter() {
+    public Object convert( Object value ) {
+      return new BigDecimal( ( (Number) value ).longValue() );
+    }
+  };
+
+  public static final ValueConverter VALUE_TO_BIGNUMBER = new ValueConverter() {
+    public Object convert( Object value ) {
+      Value v = (Value) value;
+      return v.isNull() ? null : v.getBigNumber();
+    }
+  };
+
+  public static final ValueConverter PARSE_BIGNUMBER = new ValueConverter() {
+    public Object convert( Object value ) {
+      return new BigDecimal( Const.trim( value.toString() ) );
+    }
+  };
+
+  private ValueConverters() {
+  }
+
+  /**
+   * Finds the converter for values of the given runtime class.
+   *
+   * @param type  the Kettle type of the output field
+   * @param clazz the runtime class of the script result
+   * @return the converter to use for all values of that class
+   * @throws KettleValueException if values of this class can't be converted to the given type
+   */
+  public static ValueConverter resolve( int type, Class<?> clazz ) throws KettleValueException {
+    String className = clazz.getName();
+    boolean undefined = className.equals( "org.mozilla.javascript.Undefined" );
+
+    switch ( type ) {
+      case ValueMetaInterface.TYPE_NUMBER:
+        if ( undefined ) {
+          return TO_NULL;
+        } else if ( Double.class.equals( clazz ) ) {
+          return IDENTITY;
+        } else if ( Number.class.isAssignableFrom( clazz ) ) {
+          return NUMBER_TO_NUMBER;
+        } else if ( Value.class.isAssignableFrom( clazz ) ) {
+          return VALUE_TO_NUMBER;
+        }
+        // Last resort, try to parse from toString()
+        return PARSE_NUMBER;
+
+      case ValueMetaInterface.TYPE_INTEGER:
+        if ( undefined ) {
+          return TO_NULL;
+        } else if ( Long.class.equals( clazz ) ) {
+          return IDENTITY;
+        } else if ( Number.class.isAssignableFrom( clazz ) ) {
+          return NUMBER_TO_INTEGER;
+        } else if ( Value.class.isAssignableFrom( clazz ) ) {
+          return VALUE_TO_INTEGER;
+        }
+        return PARSE_INTEGER;
+
+      case ValueMetaInterface.TYPE_STRING:
+        if ( undefined ) {
+          return TO_NULL;
+        } else if ( String.class.equals( clazz ) ) {
+          return IDENTITY;
+        }
+        // Value, GString, ... all have a sensible toString()
+        return TO_STRING;
+
+      case ValueMetaInterface.TYPE_DATE:
+        if ( undefined ) {
+          return TO_NULL;
+        } else if ( Date.class.isAssignableFrom( clazz ) ) {
+          return DATE_TO_DATE;
+        } else if ( Number.class.isAssignableFrom( clazz ) ) {
+          return NUMBER_TO_DATE;
+        } else if ( Value.class.isAssignableFrom( clazz ) ) {
+          return VALUE_TO_DATE;
+        } else if ( String.class.equals( clazz ) ) {
+          return PARSE_DATE;
+        }
+        throw new KettleValueException( "Can't convert a " + className + " to a date" );
+
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        return undefined ? TO_NULL : IDENTITY;
+
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+        if ( undefined ) {
+          return TO_NULL;
+        } else if ( BigDecimal.class.equals( clazz ) ) {
+          return IDENTITY;
+        } else if ( Byte.class.equals( clazz ) || Short.class.equals( clazz ) || Integer.class.equals( clazz )
+          || Long.class.equals( clazz ) || Double.class.equals( clazz ) ) {
+          return INTEGER_TO_BIGNUMBER;
+        } else if ( Value.class.isAssignableFrom( clazz ) ) {
+          return VALUE_TO_BIGNUMBER;
+        } else if ( String.class.equals( clazz ) ) {
+          return PARSE_BIGNUMBER;
+        }
+        throw new KettleValueException( "JavaScript conversion to BigNumber not implemented for " + className );
+
+      case ValueMetaInterface.TYPE_BINARY:
+        return IDENTITY;
+
+      default:
+        throw new KettleValueException( "JavaScript conversion not implemented for type " + type + " ("
+          + ValueMeta.getTypeDesc( type ) + ")" );
+    }
+  }
+}
@@ -126,6 +126,34 @@ public class SuperScriptDialog extends BaseStepDialog implements StepDialogInter
   private CCombo wEngines;
   private FormData fdlEngines, fdEngines;
 
+  private Label wlExecutionMode;
+  private CCombo wExecutionMode;
+  private FormData fdlExecutionMode, fdExecutionMode;
+
+  private Label wlBatchSize;
+  private Text wBatchSize;
+  private FormData fdlBatchSize, fdBatchSize;
+
+  private Label wlBatchMaxLatency;
+  private Text wBatchMaxLatency;
+  private FormData fdlBatchMaxLatency, fdBatchMaxLatency;
+
+  private Label wlParallelWorkers;
+  private Text wParallelWorkers;
+  private FormData fdlParallelWorkers, fdParallelWorkers;
+
+  private Label wlParallelOrdered;
+  private Button wParallelOrdered;
+  private FormData fdlParallelOrdered, fdParallelOrdered;
+
+  private Label wlRowsPerCall;
+  private Text wRowsPerCall;
+  private FormData fdlRowsPerCall, fdRowsPerCall;
+
+  private Label wlLoadLibraries;
+  private Button wLoadLibraries;
+  private FormData fdlLoadLibraries, fdLoadLibraries;
+
   private ModifyListener lsMod;
   private SashForm wSash;
   private FormData fdSash;
@@ -143,6 +171,10 @@ public class SuperScriptDialog extends BaseStepDialog implements StepDialogInter
   private TableView wFields;
   private FormData fdlFields, fdFields;
 
+  private Label wlTargets;
+  private TableView wTargets;
+  private FormData fdlTargets, fdTargets;
+
   private Label wlPosition;
   private FormData fdlPosition;
 
@@ -321,12 +353,145 @@ public class SuperScriptDialog extends BaseStepDialog implements StepDialogInter
     fdEngines.right = new FormAttachment( 100, 0 );
     wEngines.setLayoutData( fdEngines );
 
+    // Execution mode line
+    wlExecutionMode = new Label( shell, SWT.RIGHT );
+    wlExecutionMode.setText( BaseMessages.getString( PKG, "SuperScriptDialog.ExecutionMode.Label" ) );
+    props.setLook( wlExecutionMode );
+    fdlExecutionMode = new FormData();
+    fdlExecutionMode.left = new FormAttachment( 0, 0 );
+    fdlExecutionMode.right = new FormAttachment( middle, -margin );
+    fdlExecutionMode.top = new FormAttachment( wEngines, margin );
+    wlExecutionMode.setLayoutData( fdlExecutionMode );
+    wExecutionMode = new CCombo( shell, SWT.LEFT | SWT.READ_ONLY | SWT.BORDER );
+    wExecutionMode.setItems( SuperScriptMeta.EXECUTION_MODE_DESCRIPTIONS );
+    props.setLook( wExecutionMode );
+    wExecutionMode.addModifyListener( lsMod );
+    fdExecutionMode = new FormData();
+    fdExecutionMode.left = new FormAttachment( middle, 0 );
+    fdExecutionMode.top = new FormAttachment( wEngines, margin );
+    fdExecutionMode.right = new FormAttachment( 100, 0 );
+    wExecutionMode.setLayoutData( fdExecutionMode );
+
+    // Batch size line
+    wlBatchSize = new Label( shell, SWT.RIGHT );
+    wlBatchSize.setText( BaseMessages.getString( PKG, "SuperScriptDialog.BatchSize.Label" ) );
+    props.setLook( wlBatchSize );
+    fdlBatchSize = new FormData();
+    fdlBatchSize.left = new FormAttachment( 0, 0 );
+    fdlBatchSize.right = new FormAttachment( middle, -margin );
+    fdlBatchSize.top = new FormAttachment( wExecutionMode, margin );
+    wlBatchSize.setLayoutData( fdlBatchSize );
+    wBatchSize = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wBatchSize );
+    wBatchSize.addModifyListener( lsMod );
+    fdBatchSize = new FormData();
+    fdBatchSize.left = new FormAttachment( middle, 0 );
+    fdBatchSize.top = new FormAttachment( wExecutionMode, margin );
+    fdBatchSize.right = new FormAttachment( 100, 0 );
+    wBatchSize.setLayoutData( fdBatchSize );
+
+    // Batch max latency line
+    wlBatchMaxLatency = new Label( shell, SWT.RIGHT );
+    wlBatchMaxLatency.setText( BaseMessages.getString( PKG, "SuperScriptDialog.BatchMaxLatency.Label" ) );
+    props.setLook( wlBatchMaxLatency );
+    fdlBatchMaxLatency = new FormData();
+    fdlBatchMaxLatency.left = new FormAttachment( 0, 0 );
+    fdlBatchMaxLatency.right = new FormAttachment( middle, -margin );
+    fdlBatchMaxLatency.top = new FormAttachment( wBatchSize, margin );
+    wlBatchMaxLatency.setLayoutData( fdlBatchMaxLatency );
+    wBatchMaxLatency = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wBatchMaxLatency );
+    wBatchMaxLatency.addModifyListener( lsMod );
+    fdBatchMaxLatency = new FormData();
+    fdBatchMaxLatency.left = new FormAttachment( middle, 0 );
+    fdBatchMaxLatency.top = new FormAttachment( wBatchSize, margin );
+    fdBatchMaxLatency.right = new FormAttachment( 100, 0 );
+    wBatchMaxLatency.setLayoutData( fdBatchMaxLatency );
+
+    wlParallelWorkers = new Label( shell, SWT.RIGHT );
+    wlParallelWorkers.setText( BaseMessages.getString( PKG, "SuperScriptDialog.ParallelWorkers.Label" ) );
+    props.setLook( wlParallelWorkers );
+    fdlParallelWorkers = new FormData();
+    fdlParallelWorkers.left = new FormAttachment( 0, 0 );
+    fdlParallelWorkers.right = new FormAttachment( middle, -margin );
+    fdlParallelWorkers.top = new FormAttachment( wBatchMaxLatency, margin );
+    wlParallelWorkers.setLayoutData( fdlParallelWorkers );
+    wParallelWorkers = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wParallelWorkers );
+    wParallelWorkers.addModifyListener( lsMod );
+    fdParallelWorkers = new FormData();
+    fdParallelWorkers.left = new FormAttachment( middle, 0 );
+    fdParallelWorkers.top = new FormAttachment( wBatchMaxLatency, margin );
+    fdParallelWorkers.right = new FormAttachment( 100, 0 );
+    wParallelWorkers.setLayoutData( fdParallelWorkers );
+
+    wlParallelOrdered = new Label( shell, SWT.RIGHT );
+    wlParallelOrdered.setText( BaseMessages.getString( PKG, "SuperScriptDialog.ParallelOrdered.Label" ) );
+    props.setLook( wlParallelOrdered );
+    fdlParallelOrdered = new FormData();
+    fdlParallelOrdered.left = new FormAttachment( 0, 0 );
+    fdlParallelOrdered.right = new FormAttachment( middle, -margin );
+    fdlParallelOrdered.top = new FormAttachment( wParallelWorkers, margin );
+    wlParallelOrdered.setLayoutData( fdlParallelOrdered );
+    wParallelOrdered = new Button( shell, SWT.CHECK );
+    props.setLook( wParallelOrdered );
+    wParallelOrdered.setToolTipText( BaseMessages.getString( PKG, "SuperScriptDialog.ParallelOrdered.Tooltip" ) );
+    fdParallelOrdered = new FormData();
+    fdParallelOrdered.left = new FormAttachment( middle, 0 );
+    fdParallelOrdered.top = new FormAttachment( wParallelWorkers, margin );
+    fdParallelOrdered.right = new FormAttachment( 100, 0 );
+    wParallelOrdered.setLayoutData( fdParallelOrdered );
+    wParallelOrdered.addSelectionListener( new SelectionAdapter() {
+      public void widgetSelected( SelectionEvent e ) {
+        input.setChanged();
+      }
+    } );
+
+    wlRowsPerCall = new Label( shell, SWT.RIGHT );
+    wlRowsPerCall.setText( BaseMessages.getString( PKG, "SuperScriptDialog.RowsPerCall.Label" ) );
+    props.setLook( wlRowsPerCall );
+    fdlRowsPerCall = new FormData();
+    fdlRowsPerCall.left = new FormAttachment( 0, 0 );
+    fdlRowsPerCall.right = new FormAttachment( middle, -margin );
+    fdlRowsPerCall.top = new FormAttachment( wParallelOrdered, margin );
+    wlRowsPerCall.setLayoutData( fdlRowsPerCall );
+    wRowsPerCall = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+    props.setLook( wRowsPerCall );
+    wRowsPerCall.addModifyListener( lsMod );
+    fdRowsPerCall = new FormData();
+    fdRowsPerCall.left = new FormAttachment( middle, 0 );
+    fdRowsPerCall.top = new FormAttachment( wParallelOrdered, margin );
+    fdRowsPerCall.right = new FormAttachment( 100, 0 );
+    wRowsPerCall.setLayoutData( fdRowsPerCall );
+
+    wlLoadLibraries = new Label( shell, SWT.RIGHT );
+    wlLoadLibraries.setText( BaseMessages.getString( PKG, "SuperScriptDialog.LoadLibraries.Label" ) );
+    props.setLook( wlLoadLibraries );
+    fdlLoadLibraries = new FormData();
+    fdlLoadLibraries.left = new FormAttachment( 0, 0 );
+    fdlLoadLibraries.right = new FormAttachment( middle, -margin );
+    fdlLoadLibraries.top = new FormAttachment( wRowsPerCall, margin );
+    wlLoadLibraries.setLayoutData( fdlLoadLibraries );
+    wLoadLibraries = new Button( shell, SWT.CHECK );
+    props.setLook( wLoadLibraries );
+    wLoadLibraries.setToolTipText( BaseMessages.getString( PKG, "SuperScriptDialog.LoadLibraries.Tooltip" ) );
+    fdLoadLibraries = new FormData();
+    fdLoadLibraries.left = new FormAttachment( middle, 0 );
+    fdLoadLibraries.top = new FormAttachment( wRowsPerCall, margin );
+    fdLoadLibraries.right = new FormAttachment( 100, 0 );
+    wLoadLibraries.setLayoutData( fdLoadLibraries );
+    wLoadLibraries.addSelectionListener( new SelectionAdapter() {
+      public void widgetSelected( SelectionEvent e ) {
+        input.setChanged();
+      }
+    } );
+
 
     wSash = new SashForm( shell, SWT.VERTICAL );
     wSash.setLayout( new FormLayout() );
     FormData fdSashform = new FormData();
     fdSashform.left = new FormAttachment( 0, 0 );
-    fdSashform.top = new FormAttachment( wEngines, 0 );
+    fdSashform.top = new FormAttachment( wLoadLibraries, 0 );
     fdSashform.right = new FormAttachment( 100, 0 );
     fdSashform.bottom = new FormAttachment( 100, 0 );
     wSash.setLayoutData( fdSashform );
@@ -470,10 +635,43 @@ public class SuperScriptDialog extends BaseStepDialog implements StepDialogInter
     fdFields = new FormData();
     fdFields.left = new FormAttachment( 0, 0 );
     fdFields.top = new FormAttachment( wlFields, margin );
-    fdFields.right = new FormAttachment( 100, 0 );
+    fdFields.right = new FormAttachment( 70, 0 );
     fdFields.bottom = new FormAttachment( 100, 0 );
     wFields.setLayoutData( fdFields );
 
+    // The target streams the script can route rows to, next to the fields
+    //
+    wlTargets = new Label( wBottom, SWT.NONE );
+    wlTargets.setText( BaseMessages.getString( PKG, "SuperScriptDialog.Targets.Label" ) );
+    props.setLook( wlTargets );
+    fdlTargets = new FormData();
+    fdlTargets.left = new FormAttachment( wFields, margin );
+    fdlTargets.top = new FormAttachment( wSeparator, 0 );
+    wlTargets.setLayoutData( fdlTargets );
+
+    final int TargetsRows = input.getTargetName().length;
+
+    ColumnInfo[] targetColinf = new ColumnInfo[]
+      {
+        new ColumnInfo( BaseMessages.getString( PKG, "SuperScriptDialog.ColumnInfo.TargetName" ), ColumnInfo.COLUMN_TYPE_TEXT, false ),
+        new ColumnInfo( BaseMessages.getString( PKG, "SuperScriptDialog.ColumnInfo.TargetStep" ), ColumnInfo.COLUMN_TYPE_CCOMBO, transMeta.getNextStepNames( stepMeta ) ),
+      };
+
+    wTargets = new TableView( transMeta, wBottom,
+      SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI,
+      targetColinf,
+      TargetsRows,
+      lsMod,
+      props
+    );
+
+    fdTargets = new FormData();
+    fdTargets.left = new FormAttachment( wFields, margin );
+    fdTargets.top = new FormAttachment( wlTargets, margin );
+    fdTargets.right = new FormAttachment( 100, 0 );
+    fdTargets.bottom = new FormAttachment( 100, 0 );
+    wTargets.setLayoutData( fdTargets );
+
     fdBottom = new FormData();
     fdBottom.left = new FormAttachment( 0, 0 );
     fdBottom.top = new FormAttachment( 0, 0 );
@@ -931,6 +1129,13 @@ public class SuperScriptDialog extends BaseStepDialog implements StepDialogInter
     } else {
       wEngines.setText( engineName );
     }
+    wExecutionMode.select( input.getExecutionMode() );
+    wBatchSize.setText( String.valueOf( input.getBatchSize() ) );
+    wBatchMaxLatency.setText( String.valueOf( input.getBatchMaxLatency() ) );
+    wParallelWorkers.setText( String.valueOf( input.getParallelWorkers() ) );
+    wParallelOrdered.setSelection( input.isParallelOrdered() );
+    wRowsPerCall.setText( String.valueOf( input.getRowsPerCall() ) );
+    wLoadLibraries.setSelection( input.isLoadLibraries() );
 
     for ( int i = 0; i < input.getFieldname().length; i++ ) {
       if ( input.getFieldname()[i] != null && input.getFieldname()[i].length() > 0 ) {
@@ -951,6 +1156,12 @@ public class SuperScriptDialog extends BaseStepDialog implements StepDialogInter
       }
     }
 
+    for ( int i = 0; i < input.getTargetName().length; i++ ) {
+      TableItem item = wTargets.table.getItem( i );
+      item.setText( 1, Const.NVL( input.getTargetName()[i], "" ) );
+      item.setText( 2, Const.NVL( input.getTargetStepname( i ), "" ) );
+    }
+
     ScriptValuesScript[] jsScripts = input.getScripts();
     if ( jsScripts.length > 0 ) {
       for ( int i = 0; i < jsScripts.length; i++ ) {
@@ -971,6 +1182,8 @@ public class SuperScriptDialog extends BaseStepDialog implements StepDialogInter
 
     wFields.setRowNums();
     wFields.optWidth( true );
+    wTargets.setRowNums();
+    wTargets.optWidth( true );
 
     wStepname.selectAll();
     wStepname.setFocus();
@@ -1024,6 +1237,13 @@ public class SuperScriptDialog extends BaseStepDialog implements StepDialogInter
 
   private void getInfo( SuperScriptMeta meta ) {
     meta.setLanguageName( wEngines.getText() );
+    meta.setExecutionMode( SuperScriptMeta.getExecutionModeByDescription( wExecutionMode.getText() ) );
+    meta.setBatchSize( Const.toInt( wBatchSize.getText(), SuperScriptMeta.DEFAULT_BATCH_SIZE ) );
+    meta.setBatchMaxLatency( Const.toInt( wBatchMaxLatency.getText(), SuperScriptMeta.DEFAULT_BATCH_MAX_LATENCY ) );
+    meta.setParallelWorkers( Math.max( 1, Const.toInt( wParallelWorkers.getText(), 1 ) ) );
+    meta.setParallelOrdered( wParallelOrdered.getSelection() );
+    meta.setRowsPerCall( Math.max( 1, Const.toInt( wRowsPerCall.getText(), SuperScriptMeta.DEFAULT_ROWS_PER_CALL ) ) );
+    meta.setLoadLibraries( wLoadLibraries.getSelection() );
     int nrfields = wFields.nrNonEmpty();
     meta.allocate( nrfields );
     for ( int i = 0; i < nrfields; i++ ) {
@@ -1045,6 +1265,15 @@ public class SuperScriptDialog extends BaseStepDialog implements StepDialogInter
       meta.getScriptResult()[i] = YES_NO_COMBO[1].equalsIgnoreCase( item.getText( 7 ) );
     }
 
+    int nrtargets = wTargets.nrNonEmpty();
+    meta.allocateTargets( nrtargets );
+    for ( int i = 0; i < nrtargets; i++ ) {
+      TableItem item = wTargets.getNonEmpty( i );
+      meta.getTargetName()[i] = item.getText( 1 );
+      meta.getTargetStepname()[i] = item.getText( 2 );
+    }
+    meta.searchInfoAndTargetSteps( transMeta.getSteps() );
+
     //input.setActiveJSScript(strActiveScript);
     CTabItem[] cTabs = folder.getItems();
     if ( cTabs.length > 0 ) {
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import javax.script.CompiledScript;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link CompiledScriptCache} only hands out a compiled script to other engines when the engines can
+ * share it, so a script always runs in the engine that asked for it when the engine keeps state of its own.
+ *
+ * @author Matt Burgess
+ */
+public class CompiledScriptCacheTest {
+
+  @Before
+  public void clearCache() {
+    CompiledScriptCache.clear();
+  }
+
+  @Test
+  public void statelessEnginesShareCompiledScripts() throws Exception {
+    TestScriptEngine.Factory factory = new TestScriptEngine.Factory( "ECMAScript", "MULTITHREADED" );
+    TestScriptEngine first = new TestScriptEngine( factory );
+    TestScriptEngine second = new TestScriptEngine( factory );
+
+    CompiledScript compiled = CompiledScriptCache.compile( first, "a + b" );
+    assertSame( compiled, CompiledScriptCache.compile( second, "a + b" ) );
+    assertEquals( 1, CompiledScriptCache.size() );
+  }
+
+  @Test
+  public void statefulEnginesAreIsolated() throws Exception {
+    TestScriptEngine.Factory factory = new TestScriptEngine.Factory( "Groovy", "MULTITHREADED" );
+    TestScriptEngine first = new TestScriptEngine( factory );
+    TestScriptEngine second = new TestScriptEngine( factory );
+
+    CompiledScript firstCompiled = CompiledScriptCache.compile( first, "def helper() { 1 }; helper()" );
+    CompiledScript secondCompiled = CompiledScriptCache.compile( second, "def helper() { 1 }; helper()" );
+    assertNotSame( firstCompiled, secondCompiled );
+    assertSame( first, firstCompiled.getEngine() );
+    assertSame( second, secondCompiled.getEngine() );
+    assertEquals( 0, CompiledScriptCache.size() );
+  }
+
+  @Test
+  public void enginesWithoutThreadingAreNotCached() throws Exception {
+    TestScriptEngine.Factory factory = new TestScriptEngine.Factory( "ECMAScript", null );
+    TestScriptEngine first = new TestScriptEngine( factory );
+    TestScriptEngine second = new TestScriptEngine( factory );
+
+    CompiledScript firstCompiled = CompiledScriptCache.compile( first, "a + b" );
+    CompiledScript secondCompiled = CompiledScriptCache.compile( second, "a + b" );
+    assertNotSame( firstCompiled, secondCompiled );
+    assertSame( second, secondCompiled.getEngine() );
+    assertEquals( 0, CompiledScriptCache.size() );
+  }
+
+  @Test
+  public void differentScriptsAreDifferentEntries() throws Exception {
+    TestScriptEngine engine = new TestScriptEngine( "ECMAScript", "MULTITHREADED" );
+    CompiledScript sum = CompiledScriptCache.compile( engine, "a + b" );
+    CompiledScript product = CompiledScriptCache.compile( engine, "a * b" );
+    assertNotSame( sum, product );
+    assertEquals( "a * b", product.eval() );
+    assertEquals( 2, CompiledScriptCache.size() );
+  }
+}
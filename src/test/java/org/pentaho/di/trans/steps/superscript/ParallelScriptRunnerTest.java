@@ -0,0 +1,158 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleValueException;
+
+/**
+ * Runs rows through a {@link ParallelScriptRunner} with evaluators that take a different time for every row, and
+ * checks the order and completeness of the results.
+ *
+ * @author Matt Burgess
+ */
+public class ParallelScriptRunnerTest {
+
+  private static final int NR_ROWS = 500;
+
+  /**
+   * Returns the row number and the previous row, after a short nap for some of the rows.
+   */
+  private static class SleepingEvaluator extends ScriptEvaluator {
+    SleepingEvaluator() {
+      super( null, null, null, null, false );
+    }
+
+    public Object[] processRow( Object[] row, Object[] lastRow, int rowNumber ) throws KettleValueException {
+      if ( rowNumber % 7 == 0 ) {
+        try {
+          Thread.sleep( rowNumber % 3 );
+        } catch ( InterruptedException e ) {
+          throw new KettleValueException( e );
+        }
+      }
+      if ( rowNumber == 13 ) {
+        throw new KettleValueException( "row 13" );
+      }
+      return new Object[] { rowNumber, lastRow };
+    }
+  }
+
+  private static ParallelScriptRunner createRunner( int nrWorkers, boolean ordered ) {
+    ScriptEvaluator[] evaluators = new ScriptEvaluator[nrWorkers];
+    for ( int i = 0; i < nrWorkers; i++ ) {
+      evaluators[i] = new SleepingEvaluator();
+    }
+    return new ParallelScriptRunner( "test", evaluators, ordered );
+  }
+
+  @Test
+  public void orderedResultsComeInInputOrder() throws Exception {
+    ParallelScriptRunner runner = createRunner( 4, true );
+    Object[] lastRow = null;
+    int expected = 1;
+    for ( int i = 1; i <= NR_ROWS; i++ ) {
+      Object[] row = new Object[] { i };
+      runner.submit( row, lastRow, i );
+      lastRow = row;
+      ParallelScriptRunner.RowTask task;
+      while ( ( task = runner.take( runner.isFull() ) ) != null ) {
+        checkTask( task, expected++ );
+      }
+    }
+    ParallelScriptRunner.RowTask task;
+    while ( ( task = runner.take( true ) ) != null ) {
+      checkTask( task, expected++ );
+    }
+    assertEquals( NR_ROWS + 1, expected );
+    assertTrue( runner.isEmpty() );
+    runner.stop();
+  }
+
+  private static void checkTask( ParallelScriptRunner.RowTask task, int expected ) {
+    assertEquals( expected, task.getRow()[0] );
+    if ( expected == 13 ) {
+      assertNull( task.getOutputRow() );
+      assertTrue( task.getException().getMessage().contains( "row 13" ) );
+    } else {
+      assertNull( task.getException() );
+      assertEquals( expected, task.getOutputRow()[0] );
+      if ( expected > 1 ) {
+        assertEquals( expected - 1, ( (Object[]) task.getOutputRow()[1] )[0] );
+      }
+    }
+  }
+
+  @Test
+  public void unorderedResultsAreComplete() throws Exception {
+    ParallelScriptRunner runner = createRunner( 3, false );
+    Set<Integer> seen = new HashSet<Integer>();
+    for ( int i = 1; i <= NR_ROWS; i++ ) {
+      runner.submit( new Object[] { i }, null, i );
+      ParallelScriptRunner.RowTask task;
+      while ( ( task = runner.take( runner.isFull() ) ) != null ) {
+        assertTrue( seen.add( (Integer) task.getRow()[0] ) );
+      }
+    }
+    ParallelScriptRunner.RowTask task;
+    while ( ( task = runner.take( true ) ) != null ) {
+      assertTrue( seen.add( (Integer) task.getRow()[0] ) );
+    }
+    assertEquals( NR_ROWS, seen.size() );
+    runner.stop();
+  }
+
+  @Test
+  public void rowsPerWorkerAddUp() throws Exception {
+    ParallelScriptRunner runner = createRunner( 4, true );
+    for ( int i = 1; i <= NR_ROWS; i++ ) {
+      runner.submit( new Object[] { i }, null, i );
+      while ( runner.take( runner.isFull() ) != null ) {
+        // Drop the results
+      }
+    }
+    while ( runner.take( true ) != null ) {
+      // Drop the results
+    }
+    long total = 0;
+    for ( long count : runner.getRowsPerWorker() ) {
+      total += count;
+    }
+    assertEquals( NR_ROWS, total );
+    runner.stop();
+  }
+
+  @Test
+  public void emptyRunnerHasNoResults() throws Exception {
+    ParallelScriptRunner runner = createRunner( 2, true );
+    assertTrue( runner.isEmpty() );
+    assertNull( runner.take( true ) );
+    assertEquals( 2, runner.getNrWorkers() );
+    runner.stop();
+  }
+}
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import javax.script.SimpleBindings;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Checks the lookup order of {@link RowBindings}: reserved script API objects, the row and its used fields, the
+ * script's own variables and the step scope.
+ *
+ * @author Matt Burgess
+ */
+public class RowBindingsTest {
+
+  private RowMetaInterface rowMeta;
+  private RowBindings bindings;
+
+  @Before
+  public void setUp() {
+    rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMeta( "name", ValueMetaInterface.TYPE_STRING ) );
+    rowMeta.addValueMeta( new ValueMeta( "status", ValueMetaInterface.TYPE_STRING ) );
+    rowMeta.addValueMeta( new ValueMeta( "amount", ValueMetaInterface.TYPE_INTEGER ) );
+    bindings = new RowBindings();
+    bindings.setRowMeta( rowMeta, new int[] { 0, 1, 2 } );
+  }
+
+  @Test
+  public void fieldsAreReadFromTheCurrentRow() {
+    Object[] first = new Object[] { "a", "new", 1L };
+    Object[] second = new Object[] { "b", "old", 2L };
+    bindings.setRow( first, null, 1 );
+    assertEquals( "a", bindings.get( "name" ) );
+    assertSame( first, bindings.get( RowBindings.ROW ) );
+    bindings.setRow( second, first, 2 );
+    assertEquals( 2L, bindings.get( "amount" ) );
+    assertSame( first, bindings.get( RowBindings.LAST_ROW ) );
+    assertEquals( 2, bindings.get( RowBindings.ROW_NUMBER ) );
+  }
+
+  @Test
+  public void assignedFieldsAreForgottenOnTheNextRow() {
+    Object[] row = new Object[] { "a", "new", 1L };
+    bindings.setRow( row, null, 1 );
+    bindings.put( "name", "changed" );
+    assertEquals( "changed", bindings.get( "name" ) );
+    // The row itself is left alone
+    assertEquals( "a", row[0] );
+    bindings.setRow( new Object[] { "b", "old", 2L }, row, 2 );
+    assertEquals( "b", bindings.get( "name" ) );
+  }
+
+  @Test
+  public void variablesShadowTheStepScope() {
+    bindings.putStepScope( "stepName", "Script" );
+    assertEquals( "Script", bindings.get( "stepName" ) );
+    bindings.put( "stepName", "mine" );
+    assertEquals( "mine", bindings.get( "stepName" ) );
+    bindings.remove( "stepName" );
+    assertEquals( "Script", bindings.get( "stepName" ) );
+  }
+
+  @Test
+  public void stepScopeDoesNotHideFields() {
+    bindings.setRow( new Object[] { "a", "new", 1L }, null, 1 );
+    bindings.putStepScope( "name", "step scope" );
+    assertEquals( "a", bindings.get( "name" ) );
+  }
+
+  @Test
+  public void reservedNamesHideFields() {
+    Object status = new Object();
+    bindings.setRow( new Object[] { "a", "new", 1L }, null, 1 );
+    assertEquals( "new", bindings.get( "status" ) );
+    bindings.putReserved( "status", status );
+    assertTrue( bindings.isReserved( "status" ) );
+    assertSame( status, bindings.get( "status" ) );
+    // The other fields are still bound
+    assertEquals( "a", bindings.get( "name" ) );
+    assertEquals( 1L, bindings.get( "amount" ) );
+  }
+
+  @Test
+  public void reservedNamesAreLeftOutOfTheRowLayout() {
+    Object status = new Object();
+    bindings.putReserved( "status", status );
+    bindings.setRowMeta( rowMeta, new int[] { 1, 2 } );
+    bindings.setRow( new Object[] { "a", "new", 3L }, null, 1 );
+    assertSame( status, bindings.get( "status" ) );
+    assertEquals( 3L, bindings.get( "amount" ) );
+    assertFalse( bindings.isReserved( "amount" ) );
+  }
+
+  @Test
+  public void reservedNamesHideFieldsInTargetMode() {
+    SimpleBindings target = new SimpleBindings();
+    bindings.setTarget( target );
+    Object status = new Object();
+    bindings.putReserved( "status", status );
+    bindings.setRow( new Object[] { "a", "new", 1L }, null, 1 );
+    assertSame( status, target.get( "status" ) );
+    assertEquals( "a", target.get( "name" ) );
+  }
+
+  @Test
+  public void targetModeCopiesTheUsedFieldsOfEveryRow() {
+    bindings.setRowMeta( rowMeta, new int[] { 0 } );
+    SimpleBindings target = new SimpleBindings();
+    bindings.setTarget( target );
+    assertSame( rowMeta, target.get( RowBindings.ROW_META ) );
+    bindings.setRow( new Object[] { "a", "new", 1L }, null, 1 );
+    assertEquals( "a", target.get( "name" ) );
+    assertFalse( target.containsKey( "amount" ) );
+    target.put( "name", "changed" );
+    bindings.setRow( new Object[] { "b", "old", 2L }, null, 2 );
+    assertEquals( "b", bindings.get( "name" ) );
+    assertEquals( 2, target.get( RowBindings.ROW_NUMBER ) );
+  }
+
+  @Test
+  public void unknownNamesAreNull() {
+    assertNull( bindings.get( "unknown" ) );
+    assertFalse( bindings.containsKey( "unknown" ) );
+  }
+}
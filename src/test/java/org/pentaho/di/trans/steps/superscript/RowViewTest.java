@@ -0,0 +1,123 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import javax.script.SimpleBindings;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Checks how {@link RowView} reads and writes input fields and output fields through the {@link OutputBuffer}, and
+ * that values written to input fields are converted to the type of the field.
+ *
+ * @author Matt Burgess
+ */
+public class RowViewTest {
+
+  private OutputBuffer output;
+  private SimpleBindings bindings;
+  private RowView view;
+  private Object[] row;
+
+  @Before
+  public void setUp() {
+    RowMetaInterface rowMeta = new RowMeta();
+    rowMeta.addValueMeta( new ValueMeta( "name", ValueMetaInterface.TYPE_STRING ) );
+    rowMeta.addValueMeta( new ValueMeta( "amount", ValueMetaInterface.TYPE_INTEGER ) );
+    rowMeta.addValueMeta( new ValueMeta( "price", ValueMetaInterface.TYPE_NUMBER ) );
+    output = new OutputBuffer( new String[] { "total", "name" },
+      new int[] { ValueMetaInterface.TYPE_NUMBER, ValueMetaInterface.TYPE_STRING } );
+    bindings = new SimpleBindings();
+    view = new RowView( rowMeta, output, bindings );
+    row = new Object[] { "a", 2L, 1.5 };
+    view.setRow( row );
+  }
+
+  @Test
+  public void readsInputFields() throws Exception {
+    assertEquals( 3, view.size() );
+    assertEquals( 1, view.indexOf( "amount" ) );
+    assertEquals( -1, view.indexOf( "unknown" ) );
+    assertEquals( "a", view.get( 0 ) );
+    assertEquals( 2L, view.getLong( "amount" ) );
+    assertEquals( 1.5, view.getDouble( 2 ), 0.0 );
+  }
+
+  @Test
+  public void outputFieldsAreSetInTheBuffer() throws Exception {
+    view.set( "total", 3.0 );
+    assertTrue( output.isSet( 0 ) );
+    assertEquals( 3.0, output.get( "total" ) );
+    assertEquals( 3.0, view.get( "total" ) );
+    // An output field named like an input field is only read from the buffer once it's set
+    assertEquals( "a", view.get( "name" ) );
+    view.set( "name", "b" );
+    assertEquals( "b", view.get( "name" ) );
+    assertEquals( "a", row[0] );
+  }
+
+  @Test
+  public void outputBufferIsResetPerRow() throws Exception {
+    output.set( "total", 1.0 );
+    output.reset();
+    assertFalse( output.isSet( 0 ) );
+    assertNull( output.get( 0 ) );
+  }
+
+  @Test( expected = KettleValueException.class )
+  public void unknownOutputField() throws Exception {
+    output.set( "unknown", 1 );
+  }
+
+  @Test
+  public void inputFieldsAreConvertedToTheirType() throws Exception {
+    view.set( 1, 5 );
+    assertEquals( 5L, row[1] );
+    view.set( "price", "2.5" );
+    assertEquals( 2.5, row[2] );
+    view.set( 0, 7L );
+    assertEquals( "7", row[0] );
+  }
+
+  @Test( expected = KettleValueException.class )
+  public void inconvertibleValuesFail() throws Exception {
+    view.set( 1, "not a number" );
+  }
+
+  @Test
+  public void nativeValues() {
+    assertTrue( output.isNative( 0, 1.0 ) );
+    assertTrue( output.isNative( 0, null ) );
+    assertFalse( output.isNative( 0, 1L ) );
+    assertTrue( output.isNative( 1, "text" ) );
+  }
+}
@@ -0,0 +1,185 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+import org.junit.Test;
+
+/**
+ * Checks what {@link ScriptEnginePool} does with returned engines under each reset policy: the bindings of the
+ * previous user are always detached, and engines that can't be cleaned up are only pooled when the policy allows it.
+ *
+ * @author Matt Burgess
+ */
+public class ScriptEnginePoolTest {
+
+  private static final String LANGUAGE = "test";
+
+  /**
+   * @return an engine with a row in its engine scope, like the one a step gives back
+   */
+  private static ScriptEngine usedEngine( String languageName ) {
+    ScriptEngine engine = new TestScriptEngine( languageName, null );
+    Bindings bindings = new SimpleBindings();
+    bindings.put( "row", new Object[] { "previous" } );
+    engine.setBindings( bindings, ScriptContext.ENGINE_SCOPE );
+    return engine;
+  }
+
+  private static void assertDetached( ScriptEngine engine ) {
+    assertNull( engine.get( "row" ) );
+    assertEquals( 0, engine.getBindings( ScriptContext.ENGINE_SCOPE ).size() );
+  }
+
+  @Test
+  public void clearBindingsPoolsStatelessEngines() {
+    ScriptEnginePool pool = new ScriptEnginePool( 4, 0, ScriptEnginePool.ResetPolicy.CLEAR_BINDINGS );
+    ScriptEngine engine = usedEngine( "ECMAScript" );
+    pool.checkin( LANGUAGE, engine );
+    assertDetached( engine );
+    assertEquals( 1, pool.getIdleCount() );
+    assertSame( engine, pool.checkout( LANGUAGE ) );
+    assertEquals( 0, pool.getIdleCount() );
+    assertEquals( 1, pool.getReusedCount() );
+  }
+
+  @Test
+  public void clearBindingsDiscardsEnginesThatCantBeCleared() {
+    ScriptEnginePool pool = new ScriptEnginePool( 4, 0, ScriptEnginePool.ResetPolicy.CLEAR_BINDINGS );
+    ScriptEngine engine = usedEngine( "python" );
+    pool.checkin( LANGUAGE, engine );
+    assertDetached( engine );
+    assertEquals( 0, pool.getIdleCount() );
+    assertEquals( 1, pool.getDiscardedCount() );
+  }
+
+  @Test
+  public void clearBindingsClearsGroovyEngines() throws Exception {
+    ScriptEnginePool pool = new ScriptEnginePool( 4, 0, ScriptEnginePool.ResetPolicy.CLEAR_BINDINGS );
+    ScriptEngine engine = new ScriptEngineManager().getEngineByName( "groovy" );
+    engine.put( "x", "previous" );
+    engine.eval( "def helper() { x }; class Helper {}; helper()" );
+    pool.checkin( LANGUAGE, engine );
+    assertEquals( 1, pool.getIdleCount() );
+
+    ScriptEngine reused = pool.checkout( LANGUAGE );
+    assertSame( engine, reused );
+    assertDetached( reused );
+    reused.put( "x", "next" );
+    assertFails( reused, "helper()" );
+    assertFails( reused, "new Helper()" );
+    assertEquals( "next!", reused.eval( "def other() { x + '!' }; other()" ) );
+  }
+
+  private static void assertFails( ScriptEngine engine, String script ) {
+    try {
+      engine.eval( script );
+      fail( script + " should fail" );
+    } catch ( ScriptException e ) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void noneStillDetachesTheBindings() {
+    ScriptEnginePool pool = new ScriptEnginePool( 4, 0, ScriptEnginePool.ResetPolicy.NONE );
+    ScriptEngine engine = usedEngine( "python" );
+    pool.checkin( LANGUAGE, engine );
+    assertDetached( engine );
+    assertEquals( 1, pool.getIdleCount() );
+  }
+
+  @Test
+  public void discardNeverPools() {
+    ScriptEnginePool pool = new ScriptEnginePool( 4, 0, ScriptEnginePool.ResetPolicy.DISCARD );
+    ScriptEngine engine = usedEngine( "ECMAScript" );
+    pool.checkin( LANGUAGE, engine );
+    assertDetached( engine );
+    assertEquals( 0, pool.getIdleCount() );
+    assertEquals( 1, pool.getDiscardedCount() );
+  }
+
+  @Test
+  public void zeroSizeNeverPools() {
+    ScriptEnginePool pool = new ScriptEnginePool( 0, 0, ScriptEnginePool.ResetPolicy.CLEAR_BINDINGS );
+    pool.checkin( LANGUAGE, usedEngine( "ECMAScript" ) );
+    assertEquals( 0, pool.getIdleCount() );
+    assertEquals( 1, pool.getDiscardedCount() );
+  }
+
+  @Test
+  public void fullPoolEvictsTheOldestEngine() {
+    ScriptEnginePool pool = new ScriptEnginePool( 2, 0, ScriptEnginePool.ResetPolicy.CLEAR_BINDINGS );
+    ScriptEngine first = usedEngine( "ECMAScript" );
+    ScriptEngine second = usedEngine( "ECMAScript" );
+    ScriptEngine third = usedEngine( "ECMAScript" );
+    pool.checkin( LANGUAGE, first );
+    pool.checkin( LANGUAGE, second );
+    pool.checkin( LANGUAGE, third );
+    assertEquals( 2, pool.getIdleCount() );
+    assertEquals( 1, pool.getEvictedCount() );
+    // Most recently returned first
+    assertSame( third, pool.checkout( LANGUAGE ) );
+    assertSame( second, pool.checkout( LANGUAGE ) );
+  }
+
+  @Test
+  public void idleEnginesAreEvictedAfterTheTimeout() throws Exception {
+    ScriptEnginePool pool = new ScriptEnginePool( 4, 1, ScriptEnginePool.ResetPolicy.CLEAR_BINDINGS );
+    ScriptEngine engine = usedEngine( "ECMAScript" );
+    pool.checkin( LANGUAGE, engine );
+    Thread.sleep( 20 );
+    pool.checkin( "other", usedEngine( "ECMAScript" ) );
+    assertEquals( 1, pool.getIdleCount() );
+    assertEquals( 1, pool.getEvictedCount() );
+  }
+
+  @Test
+  public void languagesArePooledApart() {
+    ScriptEnginePool pool = new ScriptEnginePool( 4, 0, ScriptEnginePool.ResetPolicy.CLEAR_BINDINGS );
+    ScriptEngine engine = usedEngine( "ECMAScript" );
+    ScriptEngine other = usedEngine( "ECMAScript" );
+    pool.checkin( LANGUAGE, engine );
+    pool.checkin( "other", other );
+    assertNotSame( other, pool.checkout( LANGUAGE ) );
+    assertSame( other, pool.checkout( "other" ) );
+  }
+
+  @Test
+  public void resetPolicyFromString() {
+    assertEquals( ScriptEnginePool.ResetPolicy.NONE, ScriptEnginePool.ResetPolicy.fromString( " none " ) );
+    assertEquals( ScriptEnginePool.ResetPolicy.DISCARD, ScriptEnginePool.ResetPolicy.fromString( "DISCARD" ) );
+    assertEquals( ScriptEnginePool.ResetPolicy.CLEAR_BINDINGS, ScriptEnginePool.ResetPolicy.fromString( null ) );
+    assertEquals( ScriptEnginePool.ResetPolicy.CLEAR_BINDINGS, ScriptEnginePool.ResetPolicy.fromString( "bogus" ) );
+  }
+}
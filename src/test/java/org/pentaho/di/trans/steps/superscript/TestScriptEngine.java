@@ -0,0 +1,166 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+/**
+ * A minimal compilable script engine for the tests. Evaluating a script returns the script text, compiled scripts
+ * remember the engine that compiled them, and the factory reports the language, engine name and THREADING parameter
+ * it was created with.
+ *
+ * @author Matt Burgess
+ */
+public class TestScriptEngine extends AbstractScriptEngine implements Compilable {
+
+  private final Factory factory;
+
+  public TestScriptEngine( Factory factory ) {
+    this.factory = factory;
+  }
+
+  public TestScriptEngine( String languageName, String threading ) {
+    this( new Factory( languageName, threading ) );
+  }
+
+  public Object eval( String script, ScriptContext context ) throws ScriptException {
+    return script;
+  }
+
+  public Object eval( Reader reader, ScriptContext context ) throws ScriptException {
+    return eval( read( reader ), context );
+  }
+
+  public Bindings createBindings() {
+    return new SimpleBindings();
+  }
+
+  public ScriptEngineFactory getFactory() {
+    return factory;
+  }
+
+  public CompiledScript compile( final String script ) throws ScriptException {
+    return new CompiledScript() {
+      public Object eval( ScriptContext context ) throws ScriptException {
+        return TestScriptEngine.this.eval( script, context );
+      }
+
+      public ScriptEngine getEngine() {
+        return TestScriptEngine.this;
+      }
+    };
+  }
+
+  public CompiledScript compile( Reader reader ) throws ScriptException {
+    return compile( read( reader ) );
+  }
+
+  private static String read( Reader reader ) throws ScriptException {
+    StringBuilder script = new StringBuilder();
+    char[] buffer = new char[1024];
+    try {
+      for ( int n = reader.read( buffer ); n >= 0; n = reader.read( buffer ) ) {
+        script.append( buffer, 0, n );
+      }
+    } catch ( IOException e ) {
+      throw new ScriptException( e );
+    }
+    return script.toString();
+  }
+
+  public static class Factory implements ScriptEngineFactory {
+    private final String languageName;
+    private final String threading;
+
+    public Factory( String languageName, String threading ) {
+      this.languageName = languageName;
+      this.threading = threading;
+    }
+
+    public String getEngineName() {
+      return languageName + " test engine";
+    }
+
+    public String getEngineVersion() {
+      return "1.0";
+    }
+
+    public List<String> getExtensions() {
+      return Collections.emptyList();
+    }
+
+    public List<String> getMimeTypes() {
+      return Collections.emptyList();
+    }
+
+    public List<String> getNames() {
+      return Arrays.asList( languageName );
+    }
+
+    public String getLanguageName() {
+      return languageName;
+    }
+
+    public String getLanguageVersion() {
+      return "1.0";
+    }
+
+    public Object getParameter( String key ) {
+      if ( "THREADING".equals( key ) ) {
+        return threading;
+      }
+      if ( ScriptEngine.NAME.equals( key ) || ScriptEngine.LANGUAGE.equals( key ) ) {
+        return languageName;
+      }
+      return null;
+    }
+
+    public String getMethodCallSyntax( String obj, String m, String... args ) {
+      return obj + "." + m + "()";
+    }
+
+    public String getOutputStatement( String toDisplay ) {
+      return toDisplay;
+    }
+
+    public String getProgram( String... statements ) {
+      return Arrays.toString( statements );
+    }
+
+    public ScriptEngine getScriptEngine() {
+      return new TestScriptEngine( this );
+    }
+  }
+}
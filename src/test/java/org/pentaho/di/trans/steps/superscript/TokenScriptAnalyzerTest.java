@@ -0,0 +1,233 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Checks which names the analyzers of {@link ScriptAnalyzers} find in code, comments, strings and interpolated
+ * expressions. A name the analyzer misses is a field the step doesn't bind, so the tricky cases are the ones where a
+ * comment or string delimiter shows up outside of a comment or string.
+ *
+ * @author Matt Burgess
+ */
+public class TokenScriptAnalyzerTest {
+
+  private static void assertFound( Set<String> names, String... expected ) {
+    for ( String name : expected ) {
+      assertTrue( name + " not found in " + names, names.contains( name ) );
+    }
+  }
+
+  private static void assertNotFound( Set<String> names, String... unexpected ) {
+    for ( String name : unexpected ) {
+      assertFalse( name + " found in " + names, names.contains( name ) );
+    }
+  }
+
+  @Test
+  public void nullAndEmptyScripts() {
+    assertTrue( ScriptAnalyzers.JAVASCRIPT.getReferencedNames( null ).isEmpty() );
+    assertTrue( ScriptAnalyzers.JAVASCRIPT.getReferencedNames( "" ).isEmpty() );
+  }
+
+  @Test
+  public void identifiersAreWholeTokens() {
+    Set<String> names = ScriptAnalyzers.JAVASCRIPT.getReferencedNames( "var valid = isValid( id2 ) && 1e5 > 0;" );
+    assertFound( names, "valid", "isValid", "id2" );
+    assertNotFound( names, "id", "e5", "1e5" );
+  }
+
+  // JavaScript
+
+  @Test
+  public void javaScriptComments() {
+    Set<String> names = ScriptAnalyzers.JAVASCRIPT.getReferencedNames(
+      "// lineComment\nvar a = b; /* blockComment\n more */ c = d; // lastLine" );
+    assertFound( names, "a", "b", "c", "d" );
+    assertNotFound( names, "lineComment", "blockComment", "more", "lastLine" );
+  }
+
+  @Test
+  public void javaScriptStrings() {
+    Set<String> names = ScriptAnalyzers.JAVASCRIPT.getReferencedNames(
+      "var a = \"quoted \\\" text\" + name + 'single // text' + other;" );
+    assertFound( names, "a", "name", "other", "quoted \\\" text", "single // text" );
+    assertNotFound( names, "quoted", "text", "single" );
+  }
+
+  @Test
+  public void javaScriptTemplateLiterals() {
+    Set<String> names = ScriptAnalyzers.JAVASCRIPT.getReferencedNames( "var a = `total ${price * qty}\n${tax}`;" );
+    assertFound( names, "price", "qty", "tax" );
+  }
+
+  @Test
+  public void javaScriptRegexWithQuote() {
+    Set<String> names =
+      ScriptAnalyzers.JAVASCRIPT.getReferencedNames( "if ( /it's/.test( name ) ) { out = 'yes'; }" );
+    assertFound( names, "name", "out" );
+  }
+
+  @Test
+  public void javaScriptRegexWithSlashes() {
+    Set<String> names = ScriptAnalyzers.JAVASCRIPT.getReferencedNames( "var re = /https?:\\/\\//; out = url;" );
+    assertFound( names, "re", "out", "url" );
+  }
+
+  @Test
+  public void javaScriptRegexWithCommentStart() {
+    Set<String> names = ScriptAnalyzers.JAVASCRIPT.getReferencedNames( "var n = s.replace( /[/*]/g, '' ) + rest;" );
+    assertFound( names, "n", "s", "rest" );
+  }
+
+  @Test
+  public void javaScriptDivisionIsNoRegex() {
+    Set<String> names = ScriptAnalyzers.JAVASCRIPT.getReferencedNames( "var r = total / count / 2; x = 'a/b';" );
+    assertFound( names, "r", "total", "count", "x" );
+    assertNotFound( names, "a", "b" );
+  }
+
+  @Test
+  public void javaScriptUnclosedQuote() {
+    // Not a string, so the rest of the line is code
+    Set<String> names = ScriptAnalyzers.JAVASCRIPT.getReferencedNames( "var a = b ' c;\nd = e;" );
+    assertFound( names, "a", "b", "c", "d", "e" );
+  }
+
+  // Groovy
+
+  @Test
+  public void groovyGStrings() {
+    Set<String> names =
+      ScriptAnalyzers.GROOVY.getReferencedNames( "def s = \"Hello $name, ${row.size()} ${first + last}\"" );
+    assertFound( names, "s", "name", "row", "size", "first", "last" );
+  }
+
+  @Test
+  public void groovySingleQuotedStrings() {
+    Set<String> names = ScriptAnalyzers.GROOVY.getReferencedNames( "def s = 'no $interpolation' + other" );
+    assertFound( names, "s", "other", "no $interpolation" );
+    assertNotFound( names, "interpolation" );
+  }
+
+  @Test
+  public void groovyTripleQuotedStrings() {
+    Set<String> names = ScriptAnalyzers.GROOVY.getReferencedNames(
+      "def a = \"\"\"first \"line\"\n${name}\"\"\"\ndef b = '''plain\n$hidden'''\nc = d" );
+    assertFound( names, "a", "name", "b", "c", "d" );
+    assertNotFound( names, "hidden", "plain" );
+  }
+
+  @Test
+  public void groovySlashyStrings() {
+    Set<String> names =
+      ScriptAnalyzers.GROOVY.getReferencedNames( "def m = name ==~ /it's ${pattern}/\nout = value" );
+    assertFound( names, "m", "name", "pattern", "out", "value" );
+  }
+
+  @Test
+  public void groovyDollarSlashyStrings() {
+    Set<String> names =
+      ScriptAnalyzers.GROOVY.getReferencedNames( "def p = $/C:\\dir's // ${folder}/$\nout = value" );
+    assertFound( names, "p", "folder", "out", "value" );
+  }
+
+  @Test
+  public void groovyComments() {
+    Set<String> names =
+      ScriptAnalyzers.GROOVY.getReferencedNames( "/* hidden\n */ def a = b // \"not a string\nc = d" );
+    assertFound( names, "a", "b", "c", "d" );
+    assertNotFound( names, "hidden", "not a string" );
+  }
+
+  // Python
+
+  @Test
+  public void pythonComments() {
+    Set<String> names = ScriptAnalyzers.PYTHON.getReferencedNames( "# hidden\na = b  # also hidden\nc = '#' + d" );
+    assertFound( names, "a", "b", "c", "d" );
+    assertNotFound( names, "hidden", "also" );
+  }
+
+  @Test
+  public void pythonStrings() {
+    Set<String> names = ScriptAnalyzers.PYTHON.getReferencedNames(
+      "a = 'plain {hidden}' + \"also {hidden2}\" + b\nc = r'raw {hidden3}' + d" );
+    assertFound( names, "a", "b", "c", "d" );
+    assertNotFound( names, "hidden", "hidden2", "hidden3" );
+  }
+
+  @Test
+  public void pythonFStrings() {
+    Set<String> names = ScriptAnalyzers.PYTHON.getReferencedNames(
+      "a = f'{name}' + F\"{other!r}\" + rf'{third}' + fR\"{fourth}\"" );
+    assertFound( names, "a", "name", "other", "third", "fourth" );
+  }
+
+  @Test
+  public void pythonTripleQuotedStrings() {
+    Set<String> names = ScriptAnalyzers.PYTHON.getReferencedNames(
+      "\"\"\"docstring\nhidden\n\"\"\"\na = f\"\"\"multi\n{name} \"quoted\"\n\"\"\"\nb = '''x\nhidden2'''\nc = d" );
+    assertFound( names, "a", "name", "b", "c", "d" );
+    assertNotFound( names, "hidden", "hidden2", "docstring" );
+  }
+
+  @Test
+  public void pythonNestedQuotesInFString() {
+    Set<String> names = ScriptAnalyzers.PYTHON.getReferencedNames( "a = f\"{row['key']} {value}\"\nb = c" );
+    assertFound( names, "a", "row", "value", "b", "c" );
+  }
+
+  // Ruby
+
+  @Test
+  public void rubyComments() {
+    Set<String> names =
+      ScriptAnalyzers.RUBY.getReferencedNames( "# hidden\na = b # also\n=begin\nblock\n=end\nc = d" );
+    assertFound( names, "a", "b", "c", "d" );
+    assertNotFound( names, "hidden", "also", "block" );
+  }
+
+  @Test
+  public void rubyInterpolation() {
+    Set<String> names = ScriptAnalyzers.RUBY.getReferencedNames( "a = \"Hello #{name} #{row.size}\" + `echo #{cmd}`" );
+    assertFound( names, "a", "name", "row", "size", "cmd" );
+  }
+
+  @Test
+  public void rubyMultiLineSingleQuotedStrings() {
+    Set<String> names = ScriptAnalyzers.RUBY.getReferencedNames( "a = 'first\n#{hidden}\nlast' + b\nc = d" );
+    assertFound( names, "a", "b", "c", "d" );
+    assertNotFound( names, "hidden", "first", "last" );
+  }
+
+  @Test
+  public void rubyRegexWithHashAndQuote() {
+    Set<String> names = ScriptAnalyzers.RUBY.getReferencedNames( "if name =~ /#it's/ then out = value end" );
+    assertFound( names, "name", "out", "value" );
+  }
+}
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ *
+ * Copyright (C) 2014 by Matt Burgess
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.di.trans.steps.superscript;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Checks which converter {@link ValueConverters} picks for each output type and result class, and what
+ * {@link FieldConverter} makes of the values.
+ *
+ * @author Matt Burgess
+ */
+public class ValueConvertersTest {
+
+  private static Object convert( int type, Object value ) throws KettleValueException {
+    return new FieldConverter( "field", type ).convert( value );
+  }
+
+  @Test
+  public void nativeClassesAreNotConverted() throws Exception {
+    assertSame( ValueConverters.IDENTITY, ValueConverters.resolve( ValueMetaInterface.TYPE_NUMBER, Double.class ) );
+    assertSame( ValueConverters.IDENTITY, ValueConverters.resolve( ValueMetaInterface.TYPE_INTEGER, Long.class ) );
+    assertSame( ValueConverters.IDENTITY, ValueConverters.resolve( ValueMetaInterface.TYPE_STRING, String.class ) );
+    assertSame( ValueConverters.IDENTITY,
+      ValueConverters.resolve( ValueMetaInterface.TYPE_BIGNUMBER, BigDecimal.class ) );
+    assertSame( ValueConverters.IDENTITY, ValueConverters.resolve( ValueMetaInterface.TYPE_BOOLEAN, Boolean.class ) );
+    assertSame( ValueConverters.IDENTITY, ValueConverters.resolve( ValueMetaInterface.TYPE_BINARY, byte[].class ) );
+  }
+
+  @Test
+  public void numbers() throws Exception {
+    assertSame( ValueConverters.NUMBER_TO_NUMBER,
+      ValueConverters.resolve( ValueMetaInterface.TYPE_NUMBER, Integer.class ) );
+    assertSame( ValueConverters.PARSE_NUMBER, ValueConverters.resolve( ValueMetaInterface.TYPE_NUMBER, String.class ) );
+    assertEquals( 3.0, convert( ValueMetaInterface.TYPE_NUMBER, 3 ) );
+    assertEquals( 2.5, convert( ValueMetaInterface.TYPE_NUMBER, "2.5" ) );
+  }
+
+  @Test
+  public void integers() throws Exception {
+    assertSame( ValueConverters.NUMBER_TO_INTEGER,
+      ValueConverters.resolve( ValueMetaInterface.TYPE_INTEGER, Double.class ) );
+    assertSame( ValueConverters.PARSE_INTEGER,
+      ValueConverters.resolve( ValueMetaInterface.TYPE_INTEGER, String.class ) );
+    assertEquals( 7L, convert( ValueMetaInterface.TYPE_INTEGER, 7.9 ) );
+    assertEquals( 42L, convert( ValueMetaInterface.TYPE_INTEGER, "42" ) );
+  }
+
+  @Test
+  public void strings() throws Exception {
+    assertSame( ValueConverters.TO_STRING, ValueConverters.resolve( ValueMetaInterface.TYPE_STRING, Long.class ) );
+    assertEquals( "12", convert( ValueMetaInterface.TYPE_STRING, 12L ) );
+    assertEquals( "abc", convert( ValueMetaInterface.TYPE_STRING, new StringBuilder( "abc" ) ) );
+  }
+
+  @Test
+  public void datesAreCopied() throws Exception {
+    Date date = new Date( 1000L );
+    Object converted = convert( ValueMetaInterface.TYPE_DATE, date );
+    assertEquals( date, converted );
+    assertNotSame( date, converted );
+    assertEquals( new Date( 2000L ), convert( ValueMetaInterface.TYPE_DATE, 2000L ) );
+    assertEquals( new Date( 3000L ), convert( ValueMetaInterface.TYPE_DATE, "3000" ) );
+  }
+
+  @Test( expected = KettleValueException.class )
+  public void unsupportedDates() throws Exception {
+    ValueConverters.resolve( ValueMetaInterface.TYPE_DATE, Object.class );
+  }
+
+  @Test
+  public void bigNumbers() throws Exception {
+    assertSame( ValueConverters.INTEGER_TO_BIGNUMBER,
+      ValueConverters.resolve( ValueMetaInterface.TYPE_BIGNUMBER, Integer.class ) );
+    assertEquals( new BigDecimal( 5L ), convert( ValueMetaInterface.TYPE_BIGNUMBER, 5 ) );
+    assertEquals( new BigDecimal( "1.25" ), convert( ValueMetaInterface.TYPE_BIGNUMBER, "1.25" ) );
+  }
+
+  @Test
+  public void nullStaysNull() throws Exception {
+    assertNull( convert( ValueMetaInterface.TYPE_INTEGER, null ) );
+  }
+
+  @Test
+  public void fieldConverterFollowsTheResultClass() throws Exception {
+    FieldConverter converter = new FieldConverter( "field", ValueMetaInterface.TYPE_INTEGER );
+    assertEquals( 1L, converter.convert( 1 ) );
+    assertEquals( 2L, converter.convert( "2" ) );
+    assertEquals( 3L, converter.convert( 3.0 ) );
+    assertEquals( 4L, converter.convert( 4L ) );
+  }
+
+  @Test
+  public void fieldWithoutTypeFails() {
+    try {
+      new FieldConverter( "field", ValueMetaInterface.TYPE_NONE ).convert( "value" );
+      fail( "A field without a type can't be converted" );
+    } catch ( KettleValueException e ) {
+      // Expected
+    }
+  }
+}